@@ -0,0 +1,350 @@
+import java.lang.management.ManagementFactory;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+/**
+ * Micro-benchmarks of the resolver
+ *
+ * Each benchmark runs warm-up rounds and then measurement rounds, and reports
+ * the time (ns/op) and the heap allocated (B/op) per operation. The allocation
+ * is read from the thread's allocation counter, so it covers the benchmark
+ * thread only; the end-to-end benchmark also allocates on the resolver's
+ * threads.
+ *
+ * Usage: java DNSBenchmark [name filter]
+ */
+public class DNSBenchmark {
+    static final int WARMUP_ROUNDS = 5;
+    static final int MEASUREMENT_ROUNDS = 5;
+    static final long ROUND_NANOS = 500000000L;
+    static final int FOOTPRINT_ENTRIES = 100000;
+    static final int CONCURRENT_NAMES = 10000;
+    static final int CONCURRENT_WRITE_PERCENT = 10;
+
+    // consumes the results so that the benchmarked work is not optimized away
+    static volatile long sink;
+
+
+    /**
+     * A benchmarked operation
+     */
+    interface Benchmark {
+        /**
+         * Run the operation ops times
+         *
+         * @return a value derived from the results
+         */
+        long run(int ops) throws Exception;
+    }
+
+
+    public static void main(String[] args) throws Exception {
+        String filter = (args.length > 0) ? args[0] : "";
+
+        final byte[] referral = referralResponse();
+        final DNSResponse referralResponse = new DNSResponse(referral, referral.length);
+        // the NS RDATA is a compressed name pointing into the question
+        final int compressedNameIndex = referralResponse.getRecordRDataIndex(0);
+
+        final DNSCache cache = new DNSCache();
+        cache.put(referralResponse.getAdditionals());
+
+        System.out.format("%-24s %12s %12s\n", "Benchmark", "ns/op", "B/op");
+
+        if ("response".contains(filter)) {
+            run("response", ops -> {
+                long result = 0;
+                for (int i = 0; i < ops; i++) {
+                    result += new DNSResponse(referral, referral.length).getRecordCount();
+                }
+                return result;
+            });
+            run("response.materialize", ops -> {
+                long result = 0;
+                for (int i = 0; i < ops; i++) {
+                    DNSResponse response = new DNSResponse(referral, referral.length);
+                    result += response.getServers().size() + response.getAdditionals().size();
+                }
+                return result;
+            });
+        }
+
+        if ("parseName".contains(filter)) {
+            run("parseName.compressed", ops -> {
+                long result = 0;
+                for (int i = 0; i < ops; i++) {
+                    result += new DNSResponse(referral, referral.length).parseName(compressedNameIndex).length();
+                }
+                return result;
+            });
+            // every name of the message, the zone is pointed to by all of them
+            run("parseName.message", ops -> {
+                long result = 0;
+                for (int i = 0; i < ops; i++) {
+                    DNSResponse response = new DNSResponse(referral, referral.length);
+                    for (int j = 0; j < response.getRecordCount(); j++) {
+                        result += response.getRecordName(j).length() + response.getRecordRDATA(j).length();
+                    }
+                }
+                return result;
+            });
+            final DNSNameTable nameTable = new DNSNameTable();
+            run("parseName.interned", ops -> {
+                long result = 0;
+                for (int i = 0; i < ops; i++) {
+                    DNSResponse response = new DNSResponse(ByteBuffer.wrap(referral), nameTable);
+                    for (int j = 0; j < response.getRecordCount(); j++) {
+                        result += response.getRecordName(j).length() + response.getRecordRDATA(j).length();
+                    }
+                }
+                return result;
+            });
+        }
+
+        if ("writeQuery".contains(filter)) {
+            run("writeQuery", ops -> {
+                long result = 0;
+                for (int i = 0; i < ops; i++) {
+                    result += DNSResolver.writeQuery("www.example.com", false, DNSResolver.DEFAULT_EDNS_PAYLOAD_SIZE).length;
+                }
+                return result;
+            });
+        }
+
+        if ("cache".contains(filter)) {
+            run("cache.hit", ops -> {
+                long result = 0;
+                for (int i = 0; i < ops; i++) {
+                    result += cache.get("ns1.example.com", DNSRecord.TYPE_A).size();
+                }
+                return result;
+            });
+            run("cache.miss", ops -> {
+                long result = 0;
+                for (int i = 0; i < ops; i++) {
+                    result += (cache.get("www.example.com", DNSRecord.TYPE_A) == null) ? 1 : 0;
+                }
+                return result;
+            });
+
+            // the memory a cached A record set takes
+            DNSCache full = new DNSCache(FOOTPRINT_ENTRIES);
+            for (int i = 0; i < FOOTPRINT_ENTRIES; i++) {
+                ArrayList<DNSRecord> records = new ArrayList<DNSRecord>();
+                records.add(new DNSRecord("host" + i + ".example.com", DNSRecord.TYPE_A, DNSRecord.CLASS_IP, 300, 4, "10.0." + (i >> 8 & 0xFF) + "." + (i & 0xFF), 0));
+                full.put(records);
+            }
+            System.out.format("%-24s %12s %12d B/entry\n", "cache.footprint", "", full.getFootprint() / FOOTPRINT_ENTRIES);
+
+            // throughput of a read-heavy mix from 1 to N threads, striped and with a single lock
+            int maxThreads = Math.max(4, Runtime.getRuntime().availableProcessors());
+            runConcurrent(null, new DNSCache(CONCURRENT_NAMES * 2), 1);
+            for (int threads = 1; threads <= maxThreads; threads *= 2) {
+                runConcurrent("cache.striped/" + threads, new DNSCache(CONCURRENT_NAMES * 2), threads);
+                runConcurrent("cache.locked/" + threads, new DNSCache(CONCURRENT_NAMES * 2, false, 1), threads);
+            }
+        }
+
+        if ("resolve".contains(filter)) {
+            FakeAuthority authority = new FakeAuthority();
+            final DNSResolver resolver = new DNSResolver(InetAddress.getLoopbackAddress());
+            resolver.setPort(authority.getPort());
+            final int[] next = {0};
+            run("resolve.loopback", ops -> {
+                long result = 0;
+                for (int i = 0; i < ops; i++) {
+                    // a new name every time, so every lookup misses the cache
+                    DNSLookupResult lookup = resolver.lookup("host" + (next[0]++) + ".example.com", false).join();
+                    result += lookup.getAnswers().size();
+                }
+                return result;
+            });
+            resolver.close();
+            authority.close();
+        }
+    }
+
+
+    /**
+     * Run a benchmark and print its results
+     *
+     * @param name the benchmark name
+     * @param benchmark the benchmark
+     */
+    static void run(String name, Benchmark benchmark) throws Exception {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+
+        // find a number of operations that takes about a round, warming up on the way
+        int ops = 1;
+        for (int round = 0; round < WARMUP_ROUNDS; round++) {
+            long start = System.nanoTime();
+            sink += benchmark.run(ops);
+            long elapsed = System.nanoTime() - start;
+            ops = (int) Math.max(1, Math.min(Integer.MAX_VALUE, ops * ROUND_NANOS / Math.max(1, elapsed)));
+        }
+
+        // measure
+        long totalNanos = 0;
+        long totalBytes = 0;
+        long totalOps = 0;
+        for (int round = 0; round < MEASUREMENT_ROUNDS; round++) {
+            long startBytes = threads.getThreadAllocatedBytes(threadId);
+            long start = System.nanoTime();
+            sink += benchmark.run(ops);
+            totalNanos += System.nanoTime() - start;
+            totalBytes += threads.getThreadAllocatedBytes(threadId) - startBytes;
+            totalOps += ops;
+        }
+
+        System.out.format("%-24s %12.1f %12.1f\n", name, (double) totalNanos / totalOps, (double) totalBytes / totalOps);
+    }
+
+
+    /**
+     * Run a mix of cache reads and writes on several threads for a round, and
+     * print the throughput
+     *
+     * @param name the benchmark name, or null to only warm up
+     * @param cache the cache
+     * @param threadCount the number of threads
+     */
+    static void runConcurrent(String name, final DNSCache cache, int threadCount) throws Exception {
+        for (int i = 0; i < CONCURRENT_NAMES; i++) {
+            cache.put(concurrentRecords(i));
+        }
+
+        final long[] ops = new long[threadCount];
+        final long end = System.nanoTime() + ROUND_NANOS * MEASUREMENT_ROUNDS;
+        Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            final int thread = t;
+            threads[t] = new Thread(() -> {
+                java.util.Random random = new java.util.Random(thread);
+                long count = 0;
+                long result = 0;
+                while ((count & 0xFF) != 0 || System.nanoTime() < end) {
+                    int i = random.nextInt(CONCURRENT_NAMES);
+                    if (random.nextInt(100) < CONCURRENT_WRITE_PERCENT) {
+                        cache.put(concurrentRecords(i));
+                    } else {
+                        result += cache.get("host" + i + ".example.com", DNSRecord.TYPE_A).size();
+                    }
+                    count++;
+                }
+                ops[thread] = count;
+                sink += result;
+            });
+        }
+
+        long start = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        long totalOps = 0;
+        for (int t = 0; t < threadCount; t++) {
+            threads[t].join();
+            totalOps += ops[t];
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        if (name != null) {
+            System.out.format("%-24s %12.0f ops/s\n", name, totalOps / seconds);
+        }
+    }
+
+
+    static ArrayList<DNSRecord> concurrentRecords(int i) {
+        ArrayList<DNSRecord> records = new ArrayList<DNSRecord>();
+        records.add(new DNSRecord("host" + i + ".example.com", DNSRecord.TYPE_A, DNSRecord.CLASS_IP, 300, 4, "10.0." + (i >> 8 & 0xFF) + "." + (i & 0xFF), 0));
+        return records;
+    }
+
+
+    /**
+     * Build a referral response for www.example.com with two name servers and
+     * their glue, using name compression
+     */
+    static byte[] referralResponse() {
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        // ID, flags (QR), QDCOUNT 1, ANCOUNT 0, NSCOUNT 2, ARCOUNT 2
+        response.write(new byte[] {0x12, 0x34, (byte) 0x80, 0, 0, 1, 0, 0, 0, 2, 0, 2}, 0, 12);
+        // question: www.example.com A IN, example.com starts at 16
+        writeName(response, "www.example.com");
+        response.write(new byte[] {0, 1, 0, 1}, 0, 4);
+        // authority: example.com NS ns1.example.com, example.com NS ns2.example.com
+        for (int i = 1; i <= 2; i++) {
+            response.write(new byte[] {(byte) 0xC0, 16, 0, 2, 0, 1, 0, 0, 0x0E, 0x10, 0, 6, 3, 'n', 's', (byte) ('0' + i), (byte) 0xC0, 16}, 0, 18);
+        }
+        // additional: ns1.example.com A 10.0.0.1, ns2.example.com A 10.0.0.2, the NS names start at 45 and 63
+        for (int i = 1; i <= 2; i++) {
+            response.write(new byte[] {(byte) 0xC0, (byte) (27 + 18 * i), 0, 1, 0, 1, 0, 0, 0x0E, 0x10, 0, 4, 10, 0, 0, (byte) i}, 0, 16);
+        }
+        return response.toByteArray();
+    }
+
+
+    /**
+     * Write an uncompressed name
+     */
+    static void writeName(ByteArrayOutputStream out, String name) {
+        for (String label : name.split("\\.")) {
+            out.write(label.length());
+            out.write(label.getBytes(), 0, label.length());
+        }
+        out.write(0);
+    }
+
+
+    /**
+     * An in-process authoritative server on loopback that answers every A
+     * query with 10.0.0.1
+     */
+    static class FakeAuthority {
+        private final DatagramSocket socket;
+
+        FakeAuthority() throws IOException {
+            socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+            Thread thread = new Thread(this::serve, "fake-authority");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        int getPort() {
+            return socket.getLocalPort();
+        }
+
+        void close() {
+            socket.close();
+        }
+
+        private void serve() {
+            byte[] buf = new byte[512];
+            DatagramPacket packet = new DatagramPacket(buf, buf.length);
+            while (!socket.isClosed()) {
+                try {
+                    packet.setLength(buf.length);
+                    socket.receive(packet);
+
+                    // answer with the question followed by a compressed A record, without the query's OPT record
+                    int length = packet.getLength() - ((buf[11] != 0) ? DNSResolver.OPT_LENGTH : 0);
+                    buf[2] = (byte) 0x84;  // QR, AA
+                    buf[3] = 0;
+                    buf[7] = 1;            // ANCOUNT
+                    buf[11] = 0;           // ARCOUNT
+                    byte[] answer = {(byte) 0xC0, 12, 0, 1, 0, 1, 0, 0, 0, 60, 0, 4, 10, 0, 0, 1};
+                    System.arraycopy(answer, 0, buf, length, answer.length);
+                    packet.setLength(length + answer.length);
+                    socket.send(packet);
+                } catch (IOException e) {
+                    // closed
+                }
+            }
+        }
+    }
+}
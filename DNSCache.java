@@ -0,0 +1,579 @@
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+/**
+ * A resolver cache
+ *
+ * Positive answers (A, AAAA, CNAME and NS record sets) are keyed by name, type
+ * and class and expire with the smallest TTL in the set. Negative answers
+ * (NXDOMAIN and NODATA) are cached for the TTL taken from the authority SOA, as
+ * in RFC 2308. The cache is bounded and evicts an entry that has not been used
+ * recently when it is full.
+ *
+ * The entries are kept in a compact store (see DNSCacheStore), names in wire
+ * format and addresses as raw bytes, optionally off-heap, so that the cache can
+ * hold millions of names; records are only materialized for the lookups.
+ *
+ * The cache is striped into segments by name, each with its own store, lock
+ * and eviction, so that lookups on many cores rarely contend. All the entries
+ * of a name are in the same segment.
+ *
+ * Each record set counts its hits, so that the resolver can refresh the hot
+ * sets in the background shortly before they expire (see claimPrefetch()).
+ *
+ * Expired record sets are kept for a stale window, so that the resolver can
+ * serve them when the authorities do not answer, as in RFC 8767.
+ *
+ * The cache can be written to a snapshot file and warmed from one on startup;
+ * the snapshot's entries are loaded lazily, on their first miss.
+ *
+ * The cached NS record sets and their glue also form a delegation cache, which
+ * gives the closest known name servers of a name.
+ */
+public class DNSCache {
+    static final int DEFAULT_MAX_ENTRIES = 10000;
+    static final int DEFAULT_STALE_WINDOW = 86400;
+    static final int DEFAULT_SEGMENTS = 16;
+
+    // returned by getNegative() when there is no negative answer cached
+    public static final int NOT_CACHED = -1;
+
+    // NXDOMAIN applies to every type of a name, so it is cached under this type
+    static final int TYPE_ANY_NAME_ERROR = 0;
+
+    private final DNSCacheStore[] segments;
+    private volatile long staleWindow = DEFAULT_STALE_WINDOW * 1000L;
+    private volatile DNSCacheSnapshot snapshot;
+    private volatile DNSNameTable nameTable;
+
+
+    /**
+     * A cached record set or negative answer, as exchanged with snapshots
+     */
+    static class Entry {
+        final ArrayList<DNSRecord> records; // null for a negative answer
+        final int rcode;                    // the RCODE of a negative answer
+        final int ttl;                      // the TTL the entry was cached with
+        final long expires;
+
+        Entry(ArrayList<DNSRecord> records, int ttl, long expires) {
+            this.records = records;
+            this.rcode = DNSResponse.RCODE_NO_ERROR;
+            this.ttl = ttl;
+            this.expires = expires;
+        }
+
+        Entry(int rcode, int ttl, long expires) {
+            this.records = null;
+            this.rcode = rcode;
+            this.ttl = ttl;
+            this.expires = expires;
+        }
+    }
+
+
+    /**
+     * A cached zone cut
+     */
+    public static class Delegation {
+        final String zone;
+        final ArrayList<InetAddress> servers;
+
+        Delegation(String zone, ArrayList<InetAddress> servers) {
+            this.zone = zone;
+            this.servers = servers;
+        }
+
+        public String getZone() {
+            return zone;
+        }
+
+        public ArrayList<InetAddress> getServers() {
+            return servers;
+        }
+
+        /**
+         * Get the number of labels in the zone name, the number of referrals
+         * from the root needed to reach the zone cut
+         */
+        public int getDepth() {
+            return zone.isEmpty() ? 0 : zone.split("\\.").length;
+        }
+    }
+
+
+    public DNSCache() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    public DNSCache(int maxEntries) {
+        this(maxEntries, false);
+    }
+
+    /**
+     * @param maxEntries the maximum number of cached record sets and negative answers
+     * @param offHeap whether to keep the cached records in direct memory, outside the heap
+     */
+    public DNSCache(int maxEntries, boolean offHeap) {
+        this(maxEntries, offHeap, DEFAULT_SEGMENTS);
+    }
+
+    /**
+     * @param maxEntries the maximum number of cached record sets and negative answers
+     * @param offHeap whether to keep the cached records in direct memory, outside the heap
+     * @param segmentCount the number of segments, rounded up to a power of 2
+     * @throws IllegalArgumentException if maxEntries is less than 1
+     */
+    public DNSCache(int maxEntries, boolean offHeap, int segmentCount) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be at least 1: " + maxEntries);
+        }
+        segmentCount = (segmentCount <= 1) ? 1 : Integer.highestOneBit(segmentCount - 1) << 1;
+        // no more segments than entries
+        while (segmentCount > 1 && segmentCount > maxEntries) {
+            segmentCount /= 2;
+        }
+        this.segments = new DNSCacheStore[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new DNSCacheStore((maxEntries + segmentCount - 1) / segmentCount, offHeap);
+        }
+    }
+
+
+    /**
+     * Set how long expired record sets are kept to be served stale
+     *
+     * @param staleWindow the time after expiry in seconds, 0 disables serving stale records
+     */
+    public void setStaleWindow(int staleWindow) {
+        this.staleWindow = staleWindow * 1000L;
+    }
+
+
+    /**
+     * Intern the names of the records returned by the cache
+     *
+     * @param nameTable the name table, shared with the responses, or null not to intern
+     */
+    public void setNameTable(DNSNameTable nameTable) {
+        this.nameTable = nameTable;
+    }
+
+
+    /**
+     * Warm the cache from a snapshot, whose entries are loaded when missed
+     *
+     * @param snapshot the snapshot
+     */
+    public void setSnapshot(DNSCacheSnapshot snapshot) {
+        this.snapshot = snapshot;
+    }
+
+
+    /**
+     * Write the cache, with the snapshot entries it has not loaded, to a snapshot file
+     *
+     * @param file the snapshot file
+     */
+    public void writeSnapshot(File file) throws IOException {
+        LinkedHashMap<String, Entry> snapshotEntries = new LinkedHashMap<String, Entry>();
+        for (DNSCacheStore store : segments) {
+            synchronized (store) {
+                for (int slot = store.nextSlot(0); slot >= 0; slot = store.nextSlot(slot + 1)) {
+                    String key = key(store.getName(slot), store.getType(slot), store.getClass(slot));
+                    ArrayList<DNSRecord> records = (store.isNegative(slot)) ? null : store.getRecords(slot, store.getTTL(slot), null);
+                    snapshotEntries.put(key, (records == null)
+                            ? new Entry(store.getRcode(slot), store.getTTL(slot), store.getExpires(slot))
+                            : new Entry(records, store.getTTL(slot), store.getExpires(slot)));
+                }
+            }
+        }
+        DNSCacheSnapshot snapshot = this.snapshot;
+        if (snapshot != null) {
+            snapshot.addUnloaded(snapshotEntries);
+        }
+        DNSCacheSnapshot.write(snapshotEntries, staleWindow, file);
+    }
+
+
+    /**
+     * Get the cache key of a record set
+     *
+     * @param name the record name
+     * @param type the record type
+     * @param cl the record class
+     * @return the cache key
+     */
+    static String key(String name, int type, int cl) {
+        return name.toLowerCase() + "/" + type + "/" + cl;
+    }
+
+
+    /**
+     * Get the segment of a name
+     */
+    private DNSCacheStore segment(String name) {
+        // hash the name ignoring its case, as the store does
+        int h = 0;
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            h = 31 * h + ((c >= 'A' && c <= 'Z') ? c + ('a' - 'A') : c);
+        }
+        return segments[(h * 0x9E3779B9) >>> 16 & (segments.length - 1)];
+    }
+
+
+    /**
+     * Check if a record type is cached
+     *
+     * @param type the record type
+     * @return whether records of the type are cached
+     */
+    static boolean isCacheable(int type) {
+        return type == DNSRecord.TYPE_A || type == DNSRecord.TYPE_AAAA || type == DNSRecord.TYPE_CNAME || type == DNSRecord.TYPE_NS;
+    }
+
+
+    /**
+     * Put the records of a response section into the cache
+     *
+     * The records are grouped into record sets by name, type and class, and each
+     * set replaces any set already cached under the same key.
+     *
+     * @param records the records to cache
+     */
+    public void put(ArrayList<DNSRecord> records) {
+        // group the records into record sets
+        LinkedHashMap<String, ArrayList<DNSRecord>> recordSets = new LinkedHashMap<String, ArrayList<DNSRecord>>();
+        for (DNSRecord record : records) {
+            if (!isCacheable(record.getTYPE()) || record.getCLASS() != DNSRecord.CLASS_IP || record.getTTL() <= 0) {
+                continue;
+            }
+
+            String key = key(record.getName(), record.getTYPE(), record.getCLASS());
+            ArrayList<DNSRecord> recordSet = recordSets.get(key);
+            if (recordSet == null) {
+                recordSet = new ArrayList<DNSRecord>();
+                recordSets.put(key, recordSet);
+            }
+            recordSet.add(record);
+        }
+
+        // cache the record sets, expiring with the smallest TTL in the set
+        long now = System.currentTimeMillis();
+        for (ArrayList<DNSRecord> recordSet : recordSets.values()) {
+            int ttl = Integer.MAX_VALUE;
+            for (DNSRecord record : recordSet) {
+                ttl = Math.min(ttl, record.getTTL());
+            }
+
+            DNSRecord first = recordSet.get(0);
+            DNSCacheStore store = segment(first.getName());
+            synchronized (store) {
+                store.put(first.getName(), first.getTYPE(), first.getCLASS(), recordSet, DNSResponse.RCODE_NO_ERROR, ttl, now + ttl * 1000L);
+            }
+        }
+    }
+
+
+    /**
+     * Put a negative answer into the cache
+     *
+     * @param name the queried name
+     * @param type the queried type
+     * @param rcode RCODE_NAME_ERROR for NXDOMAIN or RCODE_NO_ERROR for NODATA
+     * @param ttl the negative TTL from the authority SOA
+     */
+    public void putNegative(String name, int type, int rcode, int ttl) {
+        if (ttl <= 0) {
+            return;
+        }
+
+        if (rcode == DNSResponse.RCODE_NAME_ERROR) {
+            type = TYPE_ANY_NAME_ERROR;
+        }
+        DNSCacheStore store = segment(name);
+        synchronized (store) {
+            store.put(name, type, DNSRecord.CLASS_IP, null, rcode, ttl, System.currentTimeMillis() + ttl * 1000L);
+        }
+    }
+
+
+    /**
+     * Get a cached record set
+     *
+     * @param name the record name
+     * @param type the record type
+     * @return copies of the cached records with their remaining TTLs, or null if nothing is cached
+     */
+    public ArrayList<DNSRecord> get(String name, int type) {
+        DNSCacheStore store = segment(name);
+        synchronized (store) {
+            int slot = getEntry(store, name, type);
+            if (slot < 0 || store.isNegative(slot)) {
+                return null;
+            }
+            store.hit(slot);
+
+            int remainingTTL = (int) ((store.getExpires(slot) - System.currentTimeMillis() + 999) / 1000);
+            return store.getRecords(slot, remainingTTL, nameTable);
+        }
+    }
+
+
+    /**
+     * Get an expired record set within the stale window
+     *
+     * @param name the record name
+     * @param type the record type
+     * @param staleTTL the TTL of the stale records
+     * @return copies of the stale records, or null if the record set is unexpired or not cached
+     */
+    public ArrayList<DNSRecord> getStale(String name, int type, int staleTTL) {
+        DNSCacheStore store = segment(name);
+        synchronized (store) {
+            int slot = getStaleEntry(store, name, type);
+            if (slot < 0) {
+                return null;
+            }
+
+            return store.getRecords(slot, staleTTL, nameTable);
+        }
+    }
+
+
+    /**
+     * Record that the refresh of a name's stale answers failed
+     *
+     * @param name the record name
+     * @param type the record type, the name's stale canonical name is also marked
+     */
+    public void setRefreshFailed(String name, int type) {
+        DNSCacheStore store = segment(name);
+        synchronized (store) {
+            long now = System.currentTimeMillis();
+            for (int staleType : new int[]{type, DNSRecord.TYPE_CNAME}) {
+                int slot = getStaleEntry(store, name, staleType);
+                if (slot >= 0) {
+                    store.setRefreshFailed(slot, now);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Get when the refresh of a name's stale answers last failed
+     *
+     * @param name the record name
+     * @param type the record type, the name's stale canonical name is also checked
+     * @return the time in System.currentTimeMillis() time, or 0 if no refresh has failed
+     */
+    public long getRefreshFailed(String name, int type) {
+        DNSCacheStore store = segment(name);
+        synchronized (store) {
+            long refreshFailed = 0;
+            for (int staleType : new int[]{type, DNSRecord.TYPE_CNAME}) {
+                int slot = getStaleEntry(store, name, staleType);
+                if (slot >= 0) {
+                    refreshFailed = Math.max(refreshFailed, store.getRefreshFailed(slot));
+                }
+            }
+
+            return refreshFailed;
+        }
+    }
+
+
+    /**
+     * Claim the refresh of a hot record set that is about to expire
+     *
+     * A record set is due once it has been hit at least minHits times and its
+     * remaining TTL is within the given fraction of the TTL it was cached with.
+     * Only the first caller claims the refresh; the record set put by the
+     * refresh replaces the entry and its claim.
+     *
+     * @param name the record name
+     * @param type the record type
+     * @param fraction the fraction of the TTL before expiry in which to refresh
+     * @param minHits the hits that make a record set hot
+     * @return whether the caller should refresh the record set
+     */
+    public boolean claimPrefetch(String name, int type, double fraction, int minHits) {
+        DNSCacheStore store = segment(name);
+        synchronized (store) {
+            int slot = getEntry(store, name, type);
+            if (slot < 0 || store.isNegative(slot) || store.isPrefetching(slot) || store.getHits(slot) < minHits) {
+                return false;
+            }
+
+            long remaining = store.getExpires(slot) - System.currentTimeMillis();
+            if (remaining > store.getTTL(slot) * 1000L * fraction) {
+                return false;
+            }
+
+            store.setPrefetching(slot);
+            return true;
+        }
+    }
+
+
+    /**
+     * Get a cached negative answer
+     *
+     * @param name the queried name
+     * @param type the queried type
+     * @return RCODE_NAME_ERROR for NXDOMAIN, RCODE_NO_ERROR for NODATA, or NOT_CACHED
+     */
+    public int getNegative(String name, int type) {
+        DNSCacheStore store = segment(name);
+        synchronized (store) {
+            int slot = getEntry(store, name, TYPE_ANY_NAME_ERROR);
+            if (slot < 0) {
+                slot = getEntry(store, name, type);
+            }
+            if (slot < 0 || !store.isNegative(slot)) {
+                return NOT_CACHED;
+            }
+
+            return store.getRcode(slot);
+        }
+    }
+
+
+    /**
+     * Get the closest cached zone cut enclosing a name
+     *
+     * The zones enclosing the name are searched from the name itself up to the
+     * top-level domain, and the first one with a cached NS record set and at
+     * least one cached IPv4 name server address is returned.
+     *
+     * @param fqdn the name to be resolved
+     * @return the closest zone cut, or null if the search has to start at the root
+     */
+    public Delegation getDelegation(String fqdn) {
+        String zone = fqdn;
+        while (!zone.isEmpty()) {
+            ArrayList<DNSRecord> servers = get(zone, DNSRecord.TYPE_NS);
+            if (servers != null) {
+                ArrayList<InetAddress> addresses = new ArrayList<InetAddress>();
+                for (DNSRecord server : servers) {
+                    // take the glue addresses straight from the store
+                    DNSCacheStore store = segment(server.getRDATA());
+                    synchronized (store) {
+                        int slot = getEntry(store, server.getRDATA(), DNSRecord.TYPE_A);
+                        if (slot >= 0 && !store.isNegative(slot)) {
+                            store.hit(slot);
+                            store.addAddresses(slot, addresses);
+                        }
+                    }
+                }
+                if (!addresses.isEmpty()) {
+                    return new Delegation(zone, addresses);
+                }
+            }
+
+            // go up to the parent zone
+            int dot = zone.indexOf('.');
+            zone = (dot < 0) ? "" : zone.substring(dot + 1);
+        }
+
+        return null;
+    }
+
+
+    /**
+     * Find an entry, loading it from the snapshot on its first miss
+     *
+     * @return the entry's slot, or -1 if it is not cached
+     */
+    private int lookup(DNSCacheStore store, String name, int type) {
+        int slot = store.find(name, type, DNSRecord.CLASS_IP);
+        DNSCacheSnapshot snapshot = this.snapshot;
+        if (slot < 0 && snapshot != null) {
+            Entry entry = snapshot.get(key(name, type, DNSRecord.CLASS_IP));
+            if (entry != null) {
+                slot = store.put(name, type, DNSRecord.CLASS_IP, entry.records, entry.rcode, entry.ttl, entry.expires);
+            }
+        }
+
+        return slot;
+    }
+
+
+    /**
+     * Find an unexpired entry, dropping it if it is past serving stale
+     *
+     * @return the entry's slot, or -1 if it is not cached or has expired
+     */
+    private int getEntry(DNSCacheStore store, String name, int type) {
+        int slot = lookup(store, name, type);
+        if (slot < 0) {
+            return -1;
+        }
+
+        long now = System.currentTimeMillis();
+        long expires = store.getExpires(slot);
+        if (expires <= now) {
+            // keep expired record sets until the end of the stale window
+            if (store.isNegative(slot) || expires + staleWindow <= now) {
+                store.remove(slot);
+            }
+            return -1;
+        }
+
+        return slot;
+    }
+
+
+    /**
+     * Find an expired record set within the stale window
+     *
+     * @return the entry's slot, or -1 if it is not cached, unexpired or past serving stale
+     */
+    private int getStaleEntry(DNSCacheStore store, String name, int type) {
+        int slot = lookup(store, name, type);
+        if (slot < 0 || store.isNegative(slot)) {
+            return -1;
+        }
+
+        long now = System.currentTimeMillis();
+        long expires = store.getExpires(slot);
+        if (expires > now || expires + staleWindow <= now) {
+            return -1;
+        }
+
+        return slot;
+    }
+
+
+    /**
+     * Get the number of cached entries
+     */
+    public int size() {
+        int size = 0;
+        for (DNSCacheStore store : segments) {
+            synchronized (store) {
+                size += store.size();
+            }
+        }
+        return size;
+    }
+
+
+    /**
+     * Get the number of bytes the cached entries take
+     */
+    public long getFootprint() {
+        long footprint = 0;
+        for (DNSCacheStore store : segments) {
+            synchronized (store) {
+                footprint += store.getFootprint();
+            }
+        }
+        return footprint;
+    }
+}
@@ -0,0 +1,314 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * A snapshot of a resolver cache in a binary file, for warm restarts
+ *
+ * The file starts with an open-addressing hash table of the offsets of the
+ * entries that follow it, so a snapshot is memory-mapped when it is opened and
+ * an entry is only decoded the first time the cache misses it. Entries keep
+ * their absolute expiry time, so they expire on schedule across restarts.
+ *
+ * The layout is big-endian:
+ *   header   magic "DNSC", version, slot count, entry count
+ *   slots    the offset of the entry hashed to each slot, or 0 for none
+ *   entries  key, kind, RCODE, TTL, expiry, record count, records
+ *
+ * The segments of the cache share the snapshot. The mapping is read-only and
+ * only read at absolute offsets, so reads take no lock; an entry is claimed
+ * for the cache by setting its slot's loaded bit atomically.
+ */
+public class DNSCacheSnapshot {
+    static final int MAGIC = 0x444e5343;
+    static final int VERSION = 1;
+    static final int HEADER_LENGTH = 16;
+    static final int SLOT_LENGTH = 4;
+
+    private final ByteBuffer buffer;
+    private final int slotCount;
+    private final int entryCount;
+    private final AtomicIntegerArray loaded;    // bits of the slots whose entry has been handed to the cache
+
+
+    private DNSCacheSnapshot(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if (buffer.limit() < HEADER_LENGTH || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException("not a cache snapshot");
+        }
+
+        this.slotCount = buffer.getInt(8);
+        this.entryCount = buffer.getInt(12);
+        if (Integer.bitCount(slotCount) != 1 || HEADER_LENGTH + (long) slotCount * SLOT_LENGTH > buffer.limit()) {
+            throw new IOException("corrupt cache snapshot");
+        }
+        this.loaded = new AtomicIntegerArray((slotCount + 31) >>> 5);
+    }
+
+
+    /**
+     * Open a snapshot file, mapping it into memory
+     *
+     * @param file the snapshot file
+     * @return the snapshot
+     */
+    public static DNSCacheSnapshot open(File file) throws IOException {
+        try (RandomAccessFile snapshotFile = new RandomAccessFile(file, "r")) {
+            // the mapping stays valid after the file is closed
+            MappedByteBuffer buffer = snapshotFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, snapshotFile.length());
+            return new DNSCacheSnapshot(buffer);
+        }
+    }
+
+
+    /**
+     * Write the live entries of a cache to a snapshot file
+     *
+     * The file is written next to its destination and moved into place, so a
+     * snapshot being read is never overwritten.
+     *
+     * @param entries the cache entries by key
+     * @param staleWindow how long expired record sets are kept, in milliseconds
+     * @param file the snapshot file
+     */
+    static void write(Map<String, DNSCache.Entry> entries, long staleWindow, File file) throws IOException {
+        // keep the entries the cache would still return
+        long now = System.currentTimeMillis();
+        LinkedHashMap<String, DNSCache.Entry> live = new LinkedHashMap<String, DNSCache.Entry>();
+        for (Map.Entry<String, DNSCache.Entry> entry : entries.entrySet()) {
+            DNSCache.Entry value = entry.getValue();
+            if (value.expires + ((value.records != null) ? staleWindow : 0) > now) {
+                live.put(entry.getKey(), value);
+            }
+        }
+
+        int slotCount = Integer.highestOneBit(Math.max(1, live.size() * 2 - 1)) << 1;
+        int[] slots = new int[slotCount];
+        int entriesStart = HEADER_LENGTH + slotCount * SLOT_LENGTH;
+
+        // write the entries, hashing their offsets into the slots
+        ByteArrayOutputStream entriesBytes = new ByteArrayOutputStream();
+        DataOutputStream entriesOut = new DataOutputStream(entriesBytes);
+        for (Map.Entry<String, DNSCache.Entry> entry : live.entrySet()) {
+            int slot = hash(entry.getKey()) & (slotCount - 1);
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & (slotCount - 1);
+            }
+            slots[slot] = entriesStart + entriesOut.size();
+            writeEntry(entriesOut, entry.getKey(), entry.getValue());
+        }
+        entriesOut.flush();
+
+        File tempFile = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(tempFile))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(slotCount);
+            out.writeInt(live.size());
+            for (int slot : slots) {
+                out.writeInt(slot);
+            }
+            entriesBytes.writeTo(out);
+        }
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+
+    /**
+     * Get an entry, only the first time it is asked for
+     *
+     * The cache keeps the entry from then on, and must not get it back once it
+     * has evicted or replaced it. A corrupt entry is treated as missing.
+     *
+     * @param key the cache key
+     * @return the entry, or null if it is not in the snapshot or has been loaded
+     */
+    DNSCache.Entry get(String key) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int mask = slotCount - 1;
+        try {
+            for (int slot = hash(key) & mask, probes = 0; probes < slotCount; slot = (slot + 1) & mask, probes++) {
+                int offset = buffer.getInt(HEADER_LENGTH + slot * SLOT_LENGTH);
+                if (offset == 0) {
+                    return null;
+                }
+                if (!keyEquals(offset, keyBytes)) {
+                    continue;
+                }
+
+                if (!claim(slot)) {
+                    return null;
+                }
+                return readEntry(offset + 2 + keyBytes.length);
+            }
+        } catch (RuntimeException e) {
+            // a corrupt snapshot, fall through to a miss
+        }
+
+        return null;
+    }
+
+
+    /**
+     * Add the entries not loaded yet to a map of cache entries, keeping the
+     * entries already in the map
+     *
+     * An entry loaded concurrently may be added too, it is the same entry the
+     * cache got.
+     *
+     * @param entries the cache entries by key
+     */
+    void addUnloaded(Map<String, DNSCache.Entry> entries) {
+        try {
+            for (int slot = 0; slot < slotCount; slot++) {
+                int offset = buffer.getInt(HEADER_LENGTH + slot * SLOT_LENGTH);
+                if (offset == 0 || isLoaded(slot)) {
+                    continue;
+                }
+
+                String key = readString(offset);
+                if (!entries.containsKey(key)) {
+                    entries.put(key, readEntry(offset + 2 + key.getBytes(StandardCharsets.UTF_8).length));
+                }
+            }
+        } catch (RuntimeException e) {
+            // a corrupt snapshot, keep what was read
+        }
+    }
+
+
+    /**
+     * Get the number of entries in the snapshot
+     */
+    public int size() {
+        return entryCount;
+    }
+
+
+    /**
+     * Mark a slot's entry as loaded
+     *
+     * @return whether the slot was not loaded yet, so that the caller hands its entry to the cache
+     */
+    private boolean claim(int slot) {
+        int bit = 1 << (slot & 31);
+        while (true) {
+            int word = loaded.get(slot >>> 5);
+            if ((word & bit) != 0) {
+                return false;
+            }
+            if (loaded.compareAndSet(slot >>> 5, word, word | bit)) {
+                return true;
+            }
+        }
+    }
+
+    private boolean isLoaded(int slot) {
+        return (loaded.get(slot >>> 5) & (1 << (slot & 31))) != 0;
+    }
+
+
+    private static int hash(String key) {
+        // String.hashCode() is specified, so it is the same in every JVM
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+
+    private static void writeEntry(DataOutputStream out, String key, DNSCache.Entry entry) throws IOException {
+        writeString(out, key);
+        out.writeByte((entry.records != null) ? 1 : 0);
+        out.writeByte(entry.rcode);
+        out.writeInt(entry.ttl);
+        out.writeLong(entry.expires);
+        if (entry.records == null) {
+            return;
+        }
+
+        out.writeShort(entry.records.size());
+        for (DNSRecord record : entry.records) {
+            writeString(out, record.getName());
+            out.writeShort(record.getTYPE());
+            out.writeShort(record.getCLASS());
+            out.writeInt(record.getTTL());
+            out.writeShort(record.getRDLENGTH());
+            writeString(out, record.getRDATA());
+            out.writeShort(record.getRecordLength());
+        }
+    }
+
+
+    private DNSCache.Entry readEntry(int offset) {
+        ByteBuffer in = buffer.duplicate();
+        in.position(offset);
+
+        boolean positive = in.get() != 0;
+        int rcode = in.get();
+        int ttl = in.getInt();
+        long expires = in.getLong();
+        if (!positive) {
+            return new DNSCache.Entry(rcode, ttl, expires);
+        }
+
+        int recordCount = in.getShort() & 0xFFFF;
+        ArrayList<DNSRecord> records = new ArrayList<DNSRecord>(recordCount);
+        for (int i = 0; i < recordCount; i++) {
+            String name = readString(in);
+            int type = in.getShort() & 0xFFFF;
+            int cl = in.getShort() & 0xFFFF;
+            int recordTTL = in.getInt();
+            int rdlength = in.getShort() & 0xFFFF;
+            String rdata = readString(in);
+            int recordLength = in.getShort() & 0xFFFF;
+            records.add(new DNSRecord(name, type, cl, recordTTL, rdlength, rdata, recordLength));
+        }
+
+        return new DNSCache.Entry(records, ttl, expires);
+    }
+
+
+    private boolean keyEquals(int offset, byte[] keyBytes) {
+        int length = buffer.getShort(offset) & 0xFFFF;
+        if (length != keyBytes.length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (buffer.get(offset + 2 + i) != keyBytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private String readString(int offset) {
+        ByteBuffer in = buffer.duplicate();
+        in.position(offset);
+        return readString(in);
+    }
+
+    private static String readString(ByteBuffer in) {
+        byte[] bytes = new byte[in.getShort() & 0xFFFF];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,733 @@
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/**
+ * The compact storage of the resolver cache
+ *
+ * Entries are kept in an open-addressing hash table with linear probing,
+ * made of parallel primitive arrays, and their keys and record sets in a
+ * byte arena, optionally off-heap. Names are stored in wire format and
+ * addresses as their raw 4 or 16 bytes, so a cached A record set takes tens
+ * of bytes rather than the hundreds of a map entry holding DNSRecord objects,
+ * and the cache holds no objects per entry for the garbage collector to trace.
+ * DNSRecord objects are only created for the records a lookup gets.
+ *
+ * An entry's arena layout is its length, its name, type and class, and its
+ * record count followed by each record's RDATA length and RDATA. Replaced and
+ * removed entries leave garbage in the arena, which is compacted away when the
+ * arena runs out of room.
+ *
+ * When the table holds its maximum number of entries, the CLOCK algorithm
+ * evicts one that has not been used since the hand last passed it, which
+ * approximates LRU without a linked list through the entries.
+ *
+ * The store is not thread-safe, DNSCache locks it as a segment of the cache.
+ */
+class DNSCacheStore {
+    static final double MAX_LOAD_FACTOR = 0.75;
+    static final int INITIAL_ARENA_BYTES_PER_ENTRY = 64;
+    static final int MAX_NAME_LENGTH = 255;
+    static final int MAX_LABEL_LENGTH = 63;
+    static final int IPV4_LENGTH = 4;
+    static final int IPV6_LENGTH = 16;
+
+    // entry flags
+    static final int USED = 0x01;
+    static final int REFERENCED = 0x02;    // used since the clock hand last passed
+    static final int NEGATIVE = 0x04;
+    static final int PREFETCHING = 0x08;
+
+    private final int maxEntries;
+    private final int mask;
+    private final boolean offHeap;
+
+    // the table, indexed by slot
+    private final int[] hashes;
+    private final int[] offsets;        // of the entry in the arena
+    private final long[] expires;       // in System.currentTimeMillis() time
+    private final int[] ttls;           // the TTL the entry was cached with
+    private final int[] hits;
+    private final long[] refreshFailed; // the last failed refresh, in System.currentTimeMillis() time
+    private final byte[] rcodes;
+    private final byte[] flags;
+
+    private ByteBuffer arena;
+    private int arenaTop = 0;
+    private int arenaGarbage = 0;
+    private int size = 0;
+    private int clockHand = 0;
+
+    // the key being looked up, in wire format
+    private final byte[] key = new byte[MAX_NAME_LENGTH + 4];
+    private int keyLength;
+    private int keyHash;
+
+
+    /**
+     * @param maxEntries the maximum number of entries
+     * @param offHeap whether to keep the arena in direct memory, outside the heap
+     */
+    DNSCacheStore(int maxEntries, boolean offHeap) {
+        int capacity = Integer.highestOneBit((int) Math.max(2, Math.ceil(maxEntries / MAX_LOAD_FACTOR) - 1)) << 1;
+        this.maxEntries = maxEntries;
+        this.mask = capacity - 1;
+        this.offHeap = offHeap;
+        this.hashes = new int[capacity];
+        this.offsets = new int[capacity];
+        this.expires = new long[capacity];
+        this.ttls = new int[capacity];
+        this.hits = new int[capacity];
+        this.refreshFailed = new long[capacity];
+        this.rcodes = new byte[capacity];
+        this.flags = new byte[capacity];
+        this.arena = allocateArena(Math.min(maxEntries, 1 << 16) * INITIAL_ARENA_BYTES_PER_ENTRY);
+    }
+
+
+    /**
+     * Find an entry
+     *
+     * @param name the record name
+     * @param type the record type
+     * @param cl the record class
+     * @return the entry's slot, or -1 if it is not stored
+     */
+    int find(String name, int type, int cl) {
+        if (!encodeKey(name, type, cl)) {
+            return -1;
+        }
+
+        return findKey();
+    }
+
+
+    /**
+     * Store an entry, replacing the entry with the same key
+     *
+     * Records whose RDATA cannot be stored compactly are left out.
+     *
+     * @param name the record name
+     * @param type the record type
+     * @param cl the record class
+     * @param records the record set, or null for a negative answer
+     * @param rcode the RCODE of a negative answer
+     * @param ttl the TTL the entry is cached with
+     * @param expiry the expiry of the entry, in System.currentTimeMillis() time
+     * @return the entry's slot, or -1 if the entry cannot be stored
+     */
+    int put(String name, int type, int cl, ArrayList<DNSRecord> records, int rcode, int ttl, long expiry) {
+        if (!encodeKey(name, type, cl)) {
+            return -1;
+        }
+
+        // size the entry
+        int length = 4 + keyLength + 2;
+        int recordCount = 0;
+        if (records != null) {
+            for (DNSRecord record : records) {
+                int rdataLength = rdataLength(type, record.getRDATA());
+                if (rdataLength >= 0) {
+                    length += 1 + rdataLength;
+                    recordCount++;
+                }
+            }
+            if (recordCount == 0) {
+                return -1;
+            }
+        }
+
+        // reuse the entry's slot, or take a free one
+        int slot = findKey();
+        if (slot >= 0) {
+            // the replaced entry is garbage, and is not kept if the arena is compacted
+            arenaGarbage += arena.getInt(offsets[slot]);
+            flags[slot] = 0;
+        } else {
+            if (size >= maxEntries) {
+                evict();
+            }
+            slot = keyHash & mask;
+            while ((flags[slot] & USED) != 0) {
+                slot = (slot + 1) & mask;
+            }
+            size++;
+        }
+
+        // write the entry to the arena
+        ensureArena(length);
+        int offset = arenaTop;
+        arena.position(offset);
+        arena.putInt(length);
+        arena.put(key, 0, keyLength);
+        arena.putShort((short) recordCount);
+        if (records != null) {
+            for (DNSRecord record : records) {
+                int rdataLength = rdataLength(type, record.getRDATA());
+                if (rdataLength >= 0) {
+                    arena.put((byte) rdataLength);
+                    writeRDATA(type, record.getRDATA());
+                }
+            }
+        }
+        arenaTop += length;
+
+        hashes[slot] = keyHash;
+        offsets[slot] = offset;
+        expires[slot] = expiry;
+        ttls[slot] = ttl;
+        hits[slot] = 0;
+        refreshFailed[slot] = 0;
+        rcodes[slot] = (byte) rcode;
+        flags[slot] = (byte) (USED | REFERENCED | ((records == null) ? NEGATIVE : 0));
+        return slot;
+    }
+
+
+    /**
+     * Remove an entry, shifting back the entries probed past it
+     *
+     * @param slot the entry's slot
+     */
+    void remove(int slot) {
+        arenaGarbage += arena.getInt(offsets[slot]);
+        flags[slot] = 0;
+        size--;
+
+        int hole = slot;
+        for (int next = (slot + 1) & mask; (flags[next] & USED) != 0; next = (next + 1) & mask) {
+            // move the entry into the hole unless its home slot lies after the hole
+            int home = hashes[next] & mask;
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                move(next, hole);
+                hole = next;
+            }
+        }
+    }
+
+
+    /**
+     * Get the records of an entry
+     *
+     * @param slot the entry's slot
+     * @param ttl the TTL of the returned records
+     * @param nameTable the table to intern the names in, or null
+     * @return new records
+     */
+    ArrayList<DNSRecord> getRecords(int slot, int ttl, DNSNameTable nameTable) {
+        int offset = offsets[slot] + 4;
+        String name = readName(offset);
+        if (nameTable != null) {
+            name = nameTable.intern(name);
+        }
+        int i = offset + nameLength(offset);
+        int type = arena.getShort(i) & 0xFFFF;
+        int cl = arena.getShort(i + 2) & 0xFFFF;
+        int recordCount = arena.getShort(i + 4) & 0xFFFF;
+        i += 6;
+
+        ArrayList<DNSRecord> records = new ArrayList<DNSRecord>(recordCount);
+        for (int j = 0; j < recordCount; j++) {
+            int rdataLength = arena.get(i) & 0xFF;
+            String rdata = readRDATA(type, i + 1, rdataLength);
+            if (nameTable != null && (type == DNSRecord.TYPE_NS || type == DNSRecord.TYPE_CNAME)) {
+                rdata = nameTable.intern(rdata);
+            }
+            records.add(new DNSRecord(name, type, cl, ttl, rdataLength, rdata, name.length() + 2 + 10 + rdataLength));
+            i += 1 + rdataLength;
+        }
+
+        return records;
+    }
+
+
+    /**
+     * Add the addresses of an A or AAAA entry to a list, without decoding the records
+     *
+     * @param slot the entry's slot
+     * @param addresses the list of addresses
+     */
+    void addAddresses(int slot, ArrayList<InetAddress> addresses) {
+        int i = offsets[slot] + 4;
+        i += nameLength(i);
+        int recordCount = arena.getShort(i + 4) & 0xFFFF;
+        i += 6;
+
+        for (int j = 0; j < recordCount; j++) {
+            byte[] address = new byte[arena.get(i) & 0xFF];
+            for (int k = 0; k < address.length; k++) {
+                address[k] = arena.get(i + 1 + k);
+            }
+            try {
+                addresses.add(InetAddress.getByAddress(address));
+            } catch (UnknownHostException e) {
+                // not an address record
+            }
+            i += 1 + address.length;
+        }
+    }
+
+
+    /**
+     * Get the next used slot
+     *
+     * @param slot the slot to start from
+     * @return the first used slot from slot on, or -1 if there is none
+     */
+    int nextSlot(int slot) {
+        for (; slot <= mask; slot++) {
+            if ((flags[slot] & USED) != 0) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+
+    String getName(int slot) {
+        return readName(offsets[slot] + 4);
+    }
+
+    int getType(int slot) {
+        int offset = offsets[slot] + 4;
+        return arena.getShort(offset + nameLength(offset)) & 0xFFFF;
+    }
+
+    int getClass(int slot) {
+        int offset = offsets[slot] + 4;
+        return arena.getShort(offset + nameLength(offset) + 2) & 0xFFFF;
+    }
+
+    boolean isNegative(int slot) {
+        return (flags[slot] & NEGATIVE) != 0;
+    }
+
+    int getRcode(int slot) {
+        return rcodes[slot];
+    }
+
+    long getExpires(int slot) {
+        return expires[slot];
+    }
+
+    int getTTL(int slot) {
+        return ttls[slot];
+    }
+
+    /**
+     * Count a hit on an entry, which also marks it as used for eviction
+     *
+     * @return the entry's hits
+     */
+    int hit(int slot) {
+        flags[slot] |= REFERENCED;
+        if (hits[slot] < Integer.MAX_VALUE) {
+            hits[slot]++;
+        }
+        return hits[slot];
+    }
+
+    int getHits(int slot) {
+        return hits[slot];
+    }
+
+    boolean isPrefetching(int slot) {
+        return (flags[slot] & PREFETCHING) != 0;
+    }
+
+    void setPrefetching(int slot) {
+        flags[slot] |= PREFETCHING;
+    }
+
+    long getRefreshFailed(int slot) {
+        return refreshFailed[slot];
+    }
+
+    void setRefreshFailed(int slot, long time) {
+        refreshFailed[slot] = time;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Get the number of bytes the store takes, for the table and the arena
+     */
+    long getFootprint() {
+        return (long) (mask + 1) * (4 + 4 + 8 + 4 + 4 + 8 + 1 + 1) + arena.capacity();
+    }
+
+
+    /**
+     * Evict an entry that has not been used since the clock hand last passed it
+     */
+    private void evict() {
+        while (true) {
+            int slot = clockHand;
+            clockHand = (clockHand + 1) & mask;
+            if ((flags[slot] & USED) == 0) {
+                continue;
+            }
+
+            if ((flags[slot] & REFERENCED) != 0) {
+                // give the entry a second chance
+                flags[slot] &= ~REFERENCED;
+                continue;
+            }
+
+            remove(slot);
+            return;
+        }
+    }
+
+
+    /**
+     * Move an entry to a free slot
+     */
+    private void move(int from, int to) {
+        hashes[to] = hashes[from];
+        offsets[to] = offsets[from];
+        expires[to] = expires[from];
+        ttls[to] = ttls[from];
+        hits[to] = hits[from];
+        refreshFailed[to] = refreshFailed[from];
+        rcodes[to] = rcodes[from];
+        flags[to] = flags[from];
+        flags[from] = 0;
+    }
+
+
+    /**
+     * Make room in the arena, compacting it or growing it
+     *
+     * @param length the bytes needed
+     */
+    private void ensureArena(int length) {
+        if (arenaTop + length <= arena.capacity()) {
+            return;
+        }
+
+        // copy the live entries into a new arena, with half as much room again as they need
+        int live = arenaTop - arenaGarbage;
+        int capacity = arena.capacity();
+        while (capacity < (live + length) * 3L / 2 && capacity < Integer.MAX_VALUE / 3 * 2) {
+            capacity += capacity / 2;
+        }
+        ByteBuffer compacted = allocateArena(capacity);
+        for (int slot = nextSlot(0); slot >= 0; slot = nextSlot(slot + 1)) {
+            int entryLength = arena.getInt(offsets[slot]);
+            ByteBuffer entry = arena.duplicate();
+            entry.limit(offsets[slot] + entryLength);
+            entry.position(offsets[slot]);
+            offsets[slot] = compacted.position();
+            compacted.put(entry);
+        }
+
+        arena = compacted;
+        arenaTop = compacted.position();
+        arenaGarbage = 0;
+    }
+
+
+    private ByteBuffer allocateArena(int capacity) {
+        return (offHeap) ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+
+    /**
+     * Find the entry with the key being looked up
+     */
+    private int findKey() {
+        for (int slot = keyHash & mask; (flags[slot] & USED) != 0; slot = (slot + 1) & mask) {
+            if (hashes[slot] == keyHash && keyEquals(offsets[slot] + 4)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+
+    /**
+     * Compare the key being looked up with a stored key, ignoring the case of the names
+     */
+    private boolean keyEquals(int offset) {
+        for (int i = 0; i < keyLength; i++) {
+            if (toLower(arena.get(offset + i)) != toLower(key[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * Encode a key in wire format and hash it
+     *
+     * @return whether the name can be encoded
+     */
+    private boolean encodeKey(String name, int type, int cl) {
+        if (name.length() + 2 > MAX_NAME_LENGTH) {
+            return false;
+        }
+
+        // write the labels, filling in each label's length at its end
+        int i = 0;
+        if (!name.isEmpty()) {
+            int labelLengthIndex = i++;
+            for (int j = 0; j <= name.length(); j++) {
+                char c = (j < name.length()) ? name.charAt(j) : '.';
+                if (c == '.') {
+                    int labelLength = i - labelLengthIndex - 1;
+                    if (labelLength == 0 || labelLength > MAX_LABEL_LENGTH) {
+                        return false;
+                    }
+                    key[labelLengthIndex] = (byte) labelLength;
+                    labelLengthIndex = i++;
+                } else if (c <= 0xFF) {
+                    key[i++] = (byte) c;
+                } else {
+                    return false;
+                }
+            }
+            i--;
+        }
+        key[i++] = 0;
+        key[i++] = (byte) (type >> 8);
+        key[i++] = (byte) type;
+        key[i++] = (byte) (cl >> 8);
+        key[i++] = (byte) cl;
+        keyLength = i;
+
+        // hash the key ignoring the case of the name
+        int h = 0;
+        for (int j = 0; j < keyLength; j++) {
+            h = 31 * h + toLower(key[j]);
+        }
+        keyHash = h ^ (h >>> 16);
+        return true;
+    }
+
+
+    private static byte toLower(byte b) {
+        return (b >= 'A' && b <= 'Z') ? (byte) (b + ('a' - 'A')) : b;
+    }
+
+
+    /**
+     * Write a name in wire format, uncompressed
+     *
+     * @return whether the name is valid and fits
+     */
+    private static boolean writeName(ByteBuffer buffer, String name) {
+        if (wireLength(name) < 0 || buffer.remaining() < wireLength(name)) {
+            return false;
+        }
+
+        int labelStart = 0;
+        while (labelStart < name.length()) {
+            int labelEnd = name.indexOf('.', labelStart);
+            if (labelEnd < 0) {
+                labelEnd = name.length();
+            }
+            buffer.put((byte) (labelEnd - labelStart));
+            for (int i = labelStart; i < labelEnd; i++) {
+                buffer.put((byte) name.charAt(i));
+            }
+            labelStart = labelEnd + 1;
+        }
+        buffer.put((byte) 0);
+        return true;
+    }
+
+
+    /**
+     * Get the length of a name in wire format
+     *
+     * @return the length, or -1 if the name cannot be encoded
+     */
+    private static int wireLength(String name) {
+        if (name.isEmpty()) {
+            return 1;
+        }
+
+        int labelStart = 0;
+        while (labelStart <= name.length()) {
+            int labelEnd = name.indexOf('.', labelStart);
+            if (labelEnd < 0) {
+                labelEnd = name.length();
+            }
+            int labelLength = labelEnd - labelStart;
+            if (labelLength == 0 || labelLength > MAX_LABEL_LENGTH) {
+                return -1;
+            }
+            labelStart = labelEnd + 1;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (name.charAt(i) > 0xFF) {
+                return -1;
+            }
+        }
+
+        int length = name.length() + 2;
+        return (length <= MAX_NAME_LENGTH) ? length : -1;
+    }
+
+
+    /**
+     * Get the length of a stored name in wire format
+     */
+    private int nameLength(int offset) {
+        int i = offset;
+        int labelLength;
+        while ((labelLength = arena.get(i) & 0xFF) != 0) {
+            i += 1 + labelLength;
+        }
+        return i + 1 - offset;
+    }
+
+
+    private String readName(int offset) {
+        int length = nameLength(offset);
+        if (length <= 1) {
+            return "";
+        }
+
+        // the labels with their lengths replaced by dots, less the first one
+        byte[] name = new byte[length - 2];
+        int i = offset;
+        int labelLength;
+        int j = 0;
+        while ((labelLength = arena.get(i) & 0xFF) != 0) {
+            if (j > 0) {
+                name[j++] = '.';
+            }
+            for (int k = 1; k <= labelLength; k++) {
+                name[j++] = arena.get(i + k);
+            }
+            i += 1 + labelLength;
+        }
+        return new String(name, StandardCharsets.ISO_8859_1);
+    }
+
+
+    /**
+     * Get the length of RDATA stored compactly
+     *
+     * @return the length, or -1 if the RDATA cannot be stored
+     */
+    private static int rdataLength(int type, String rdata) {
+        switch (type) {
+            case DNSRecord.TYPE_A:
+                return (parseIPv4(rdata, null)) ? IPV4_LENGTH : -1;
+            case DNSRecord.TYPE_AAAA:
+                return (parseIPv6(rdata, null)) ? IPV6_LENGTH : -1;
+            case DNSRecord.TYPE_NS:
+            case DNSRecord.TYPE_CNAME:
+                return wireLength(rdata);
+        }
+        return -1;
+    }
+
+
+    private void writeRDATA(int type, String rdata) {
+        switch (type) {
+            case DNSRecord.TYPE_A:
+                parseIPv4(rdata, arena);
+                break;
+            case DNSRecord.TYPE_AAAA:
+                parseIPv6(rdata, arena);
+                break;
+            default:
+                writeName(arena, rdata);
+        }
+    }
+
+
+    private String readRDATA(int type, int i, int length) {
+        switch (type) {
+            case DNSRecord.TYPE_A:
+                return (arena.get(i) & 0xFF) + "." + (arena.get(i + 1) & 0xFF) + "." + (arena.get(i + 2) & 0xFF) + "." + (arena.get(i + 3) & 0xFF);
+            case DNSRecord.TYPE_AAAA:
+                // formatted as DNSResponse formats it
+                StringBuilder address = new StringBuilder(39);
+                for (int j = 0; j < 8; j++) {
+                    if (j > 0) {
+                        address.append(':');
+                    }
+                    address.append(Integer.toHexString(arena.getShort(i + j * 2) & 0xFFFF));
+                }
+                return address.toString();
+        }
+        return readName(i);
+    }
+
+
+    /**
+     * Parse a dotted-decimal IPv4 address
+     *
+     * @param address the address
+     * @param out the buffer to write the 4 bytes to, or null to only validate
+     * @return whether the address is valid
+     */
+    private static boolean parseIPv4(String address, ByteBuffer out) {
+        int octets = 0;
+        int value = -1;
+        for (int i = 0; i <= address.length(); i++) {
+            char c = (i < address.length()) ? address.charAt(i) : '.';
+            if (c == '.') {
+                if (value < 0 || ++octets > IPV4_LENGTH) {
+                    return false;
+                }
+                if (out != null) {
+                    out.put((byte) value);
+                }
+                value = -1;
+            } else if (c >= '0' && c <= '9') {
+                value = ((value < 0) ? 0 : value * 10) + (c - '0');
+                if (value > 255) {
+                    return false;
+                }
+            } else {
+                return false;
+            }
+        }
+        return octets == IPV4_LENGTH;
+    }
+
+
+    /**
+     * Parse an IPv6 address of 8 hexadecimal groups, as DNSResponse formats it
+     *
+     * @param address the address
+     * @param out the buffer to write the 16 bytes to, or null to only validate
+     * @return whether the address is valid
+     */
+    private static boolean parseIPv6(String address, ByteBuffer out) {
+        int groups = 0;
+        int value = -1;
+        for (int i = 0; i <= address.length(); i++) {
+            char c = (i < address.length()) ? address.charAt(i) : ':';
+            int digit = Character.digit(c, 16);
+            if (c == ':') {
+                if (value < 0 || ++groups > IPV6_LENGTH / 2) {
+                    return false;
+                }
+                if (out != null) {
+                    out.putShort((short) value);
+                }
+                value = -1;
+            } else if (digit >= 0) {
+                value = ((value < 0) ? 0 : value * 16) + digit;
+                if (value > 0xFFFF) {
+                    return false;
+                }
+            } else {
+                return false;
+            }
+        }
+        return groups == IPV6_LENGTH / 2;
+    }
+}
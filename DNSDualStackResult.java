@@ -0,0 +1,54 @@
+import java.util.ArrayList;
+
+/**
+ * The result of a dual-stack lookup, the IPv4 and IPv6 results of one name
+ */
+public class DNSDualStackResult {
+    private final DNSLookupResult v4;
+    private final DNSLookupResult v6;
+
+
+    public DNSDualStackResult(DNSLookupResult v4, DNSLookupResult v6) {
+        this.v4 = v4;
+        this.v6 = v6;
+    }
+
+
+    public String getFQDN() {
+        return v4.getFQDN();
+    }
+
+    /**
+     * Get the result of the A lookup
+     */
+    public DNSLookupResult getV4() {
+        return v4;
+    }
+
+    /**
+     * Get the result of the AAAA lookup
+     */
+    public DNSLookupResult getV6() {
+        return v6;
+    }
+
+    /**
+     * Get the answer records of both lookups, the A answers first
+     *
+     * @return the answer records, or null if both lookups failed
+     */
+    public ArrayList<DNSRecord> getAnswers() {
+        if (v4.getAnswers() == null && v6.getAnswers() == null) {
+            return null;
+        }
+
+        ArrayList<DNSRecord> answers = new ArrayList<DNSRecord>();
+        if (v4.getAnswers() != null) {
+            answers.addAll(v4.getAnswers());
+        }
+        if (v6.getAnswers() != null) {
+            answers.addAll(v6.getAnswers());
+        }
+        return answers;
+    }
+}
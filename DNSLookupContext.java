@@ -0,0 +1,90 @@
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The state of a lookup in progress
+ *
+ * Each lookup carries its own context through the recursive resolution, so
+ * that lookups can run concurrently on one resolver. The steps of a lookup
+ * may run on different threads, but one after the other, each started by the
+ * completion of the previous one, so the context needs no locking.
+ */
+class DNSLookupContext {
+    static final int MAX_RESOLVE_LEVEL = 30;
+
+    final String fqdn;     // the name the lookup was called with
+    final boolean v6;
+    final boolean trace;
+    final DNSLookupStats stats = new DNSLookupStats();
+    final long deadline;   // the end of the lookup's time budget, in System.nanoTime() time
+    int resolveLevel = MAX_RESOLVE_LEVEL;
+    boolean refresh = false; // a background refresh of fqdn, which skips its cached answers
+
+    // a dual-stack A lookup: the AAAA companions sent to the servers that answer it, guarded by the list
+    ArrayList<DNSLookupContext> companions = null;
+    // a companion: stops at a referral for fqdn, which the A walk follows
+    boolean companion = false;
+    boolean referred = false;
+    CompletableFuture<DNSLookupResult> companionResult = null;
+
+    private String errorName;
+    private int errorTTL = 0;
+
+
+    /**
+     * @param fqdn the name the lookup was called with
+     * @param v6 whether to resolve an IPv4 or IPv6 address
+     * @param trace whether to print the resolving trace
+     * @param budget the time budget of the whole lookup in milliseconds
+     */
+    DNSLookupContext(String fqdn, boolean v6, boolean trace, int budget) {
+        this.fqdn = fqdn;
+        this.v6 = v6;
+        this.trace = trace;
+        this.deadline = System.nanoTime() + budget * 1000000L;
+    }
+
+
+    /**
+     * Get the time left in the lookup's budget
+     *
+     * @return the time left in milliseconds, 0 if the budget is exhausted
+     */
+    int remainingMillis() {
+        return (int) Math.max(0, (deadline - System.nanoTime()) / 1000000L);
+    }
+
+
+    /**
+     * Record the error of the lookup, only the first error is kept
+     *
+     * @param name the name whose resolution failed
+     * @param ttl the error TTL (negative)
+     */
+    void fail(String name, int ttl) {
+        if (errorTTL == 0) {
+            errorName = name;
+            errorTTL = ttl;
+        }
+    }
+
+
+    /**
+     * Forget the error of a failed step the lookup recovers from, by going on another way
+     */
+    void recover() {
+        errorName = null;
+        errorTTL = 0;
+    }
+
+
+    /**
+     * Get the result of the lookup
+     *
+     * @param answers the resolved answer records, or null if the lookup failed
+     * @return the result
+     */
+    DNSLookupResult result(ArrayList<DNSRecord> answers) {
+        return new DNSLookupResult(fqdn, v6, answers, errorName, errorTTL, stats);
+    }
+}
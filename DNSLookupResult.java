@@ -0,0 +1,70 @@
+import java.util.ArrayList;
+
+/**
+ * The result of a lookup
+ */
+public class DNSLookupResult {
+    // error TTLs
+    public static final int NAME_ERROR_TTL = -1;
+    public static final int TIMEOUT_EXCEPTION_ERROR_TTL = -2;
+    public static final int TOO_DEEP_RESOLVE_TTL = -3;
+    public static final int OTHER_ERROR_TTL = -4;
+    public static final int PSEUDO_ERROR_TTL = -6;
+    public static final String ERROR_IP = "0.0.0.0";
+
+    private final String fqdn;
+    private final boolean v6;
+    private final ArrayList<DNSRecord> answers;
+    private final String errorName;
+    private final int errorTTL;
+    private final DNSLookupStats stats;
+
+
+    public DNSLookupResult(String fqdn, boolean v6, ArrayList<DNSRecord> answers, String errorName, int errorTTL, DNSLookupStats stats) {
+        this.fqdn = fqdn;
+        this.v6 = v6;
+        this.answers = answers;
+        this.errorName = errorName;
+        this.errorTTL = errorTTL;
+        this.stats = stats;
+    }
+
+
+    public String getFQDN() {
+        return fqdn;
+    }
+
+    public boolean isV6() {
+        return v6;
+    }
+
+    /**
+     * Get the answer records
+     *
+     * @return the answer records, or null if the lookup failed
+     */
+    public ArrayList<DNSRecord> getAnswers() {
+        return answers;
+    }
+
+    /**
+     * Get the name whose resolution failed, the looked up name or a name
+     * server or canonical name needed to resolve it
+     */
+    public String getErrorName() {
+        return errorName;
+    }
+
+    /**
+     * Get the error TTL
+     *
+     * @return the (negative) error TTL, or 0 if there is no error to report
+     */
+    public int getErrorTTL() {
+        return errorTTL;
+    }
+
+    public DNSLookupStats getStats() {
+        return stats;
+    }
+}
@@ -0,0 +1,68 @@
+/**
+ * Counters of the work done, and saved by the cache, for a lookup
+ */
+public class DNSLookupStats {
+    int queriesSent = 0;         // queries sent to name servers
+    int queriesCoalesced = 0;    // queries not sent because an identical query was in flight
+    int answerCacheHits = 0;     // answers and canonical names served from the cache
+    int negativeCacheHits = 0;   // NXDOMAIN and NODATA answers served from the cache
+    int delegationCacheHits = 0; // resolutions started at a cached zone cut instead of the root
+    int referralsSaved = 0;      // referrals skipped by starting at cached zone cuts
+    int prefetches = 0;          // background refreshes of hot cached answers started
+    int staleAnswers = 0;        // expired cached answers served because the resolution was slow or failed
+
+
+    public int getQueriesSent() {
+        return queriesSent;
+    }
+
+    public int getQueriesCoalesced() {
+        return queriesCoalesced;
+    }
+
+    public int getAnswerCacheHits() {
+        return answerCacheHits;
+    }
+
+    public int getNegativeCacheHits() {
+        return negativeCacheHits;
+    }
+
+    public int getDelegationCacheHits() {
+        return delegationCacheHits;
+    }
+
+    public int getReferralsSaved() {
+        return referralsSaved;
+    }
+
+    public int getPrefetches() {
+        return prefetches;
+    }
+
+    public int getStaleAnswers() {
+        return staleAnswers;
+    }
+
+
+    /**
+     * Add the counters of another lookup that was part of this one
+     */
+    void add(DNSLookupStats other) {
+        queriesSent += other.queriesSent;
+        queriesCoalesced += other.queriesCoalesced;
+        answerCacheHits += other.answerCacheHits;
+        negativeCacheHits += other.negativeCacheHits;
+        delegationCacheHits += other.delegationCacheHits;
+        referralsSaved += other.referralsSaved;
+        prefetches += other.prefetches;
+        staleAnswers += other.staleAnswers;
+    }
+
+
+    @Override
+    public String toString() {
+        return String.format("queries %d, coalesced %d, answer cache hits %d, negative cache hits %d, delegation cache hits %d, referrals saved %d, prefetches %d, stale answers %d",
+                queriesSent, queriesCoalesced, answerCacheHits, negativeCacheHits, delegationCacheHits, referralsSaved, prefetches, staleAnswers);
+    }
+}
@@ -0,0 +1,56 @@
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A table of canonical domain names
+ *
+ * The responses and the cache intern the names they decode in the table, so
+ * that a name seen in many responses and cache entries, a zone or a name
+ * server, is one String shared by all the records that hold it.
+ *
+ * The table is bounded: when it is full it is cleared and fills again with
+ * the names in use, so names that are no longer seen do not stay forever.
+ */
+public class DNSNameTable {
+    static final int DEFAULT_MAX_NAMES = 65536;
+
+    private final ConcurrentHashMap<String, String> names;
+    private final int maxNames;
+
+
+    public DNSNameTable() {
+        this(DEFAULT_MAX_NAMES);
+    }
+
+    /**
+     * @param maxNames the maximum number of names in the table
+     */
+    public DNSNameTable(int maxNames) {
+        this.names = new ConcurrentHashMap<String, String>();
+        this.maxNames = maxNames;
+    }
+
+
+    /**
+     * Get the canonical instance of a name
+     *
+     * @param name the name
+     * @return the name in the table equal to name, or name after adding it
+     */
+    public String intern(String name) {
+        String canonical = names.get(name);
+        if (canonical != null) {
+            return canonical;
+        }
+
+        if (names.size() >= maxNames) {
+            names.clear();
+        }
+        canonical = names.putIfAbsent(name, name);
+        return (canonical != null) ? canonical : name;
+    }
+
+
+    public int size() {
+        return names.size();
+    }
+}
@@ -16,7 +16,9 @@ public class DNSRecord {
     public static final int TYPE_A = 1;
     public static final int TYPE_NS = 2;
     public static final int TYPE_CNAME = 5;
+    public static final int TYPE_SOA = 6;
     public static final int TYPE_AAAA = 28;
+    public static final int TYPE_OPT = 41;
 
     // CLASS
     public static final int CLASS_IP = 1;
@@ -59,15 +61,25 @@ public class DNSRecord {
                 return "AAAA";
             case TYPE_CNAME:
                 return "CN";
+            case TYPE_SOA:
+                return "SOA";
         }
 
         return "";
     }
 
+    public int getCLASS() {
+        return cl;
+    }
+
     public int getTTL() {
         return ttl;
     }
 
+    public int getRDLENGTH() {
+        return rdlength;
+    }
+
     public String getRDATA() {
         return rdata;
     }
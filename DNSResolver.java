@@ -0,0 +1,1597 @@
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * A concurrent iterative domain name resolver
+ *
+ * Lookups are submitted with lookup(), each with its own lookup context. All
+ * lookups share one cache, and their queries are multiplexed over one
+ * transport. A lookup never blocks a thread: each step of the resolution runs
+ * on the resolver's executor when the responses it waits for arrive, so
+ * thousands of lookups can be in flight on a few threads.
+ *
+ * A dual-stack lookup, lookupDualStack(), resolves a name's IPv4 and IPv6
+ * addresses together. The A lookup walks the delegations alone, and once it
+ * reaches the zone that answers for the name, the AAAA query goes to the same
+ * servers: with the A query when the servers are those of the name's parent
+ * zone, else as soon as they answer the A query. The AAAA answer thus comes
+ * from the zone's servers with or right after the A answer, without a second
+ * walk and without extra queries to the zones above.
+ *
+ * Each query goes to all the known name servers of the zone, staggered, and
+ * the first valid response wins; the queries still outstanding are cancelled.
+ * Identical queries to the same server from concurrent lookups are coalesced
+ * into one. The servers are tried in order of smoothed RTT, and each query waits the
+ * server's RTO (see DNSServerStats). Unanswered rounds are retransmitted with
+ * exponential backoff and jitter, within a time budget for the whole lookup;
+ * once the budget is spent the lookup fails at once.
+ *
+ * Queries carry an EDNS OPT record (RFC 6891) advertising a UDP payload size
+ * of 1232 bytes, so that large referrals and answers are not truncated to 512
+ * bytes. A server that rejects EDNS is queried again without it, and is sent
+ * plain queries from then on (see DNSServerStats.useEDNS()). A response that
+ * still does not fit is truncated by the server, and the query is sent again
+ * over TCP, on a connection to the server that the transport keeps open.
+ *
+ * Cached answers that are hit often are refreshed in the background once they
+ * are within a fraction of their TTL of expiring, so that hot names do not
+ * miss the cache. At most MAX_PREFETCHES refreshes run at once, more are
+ * dropped.
+ *
+ * When only an expired answer is cached (see DNSCache.getStale()), the lookup
+ * answers with it if the resolution takes longer than the stale answer
+ * timeout or fails, as in RFC 8767; the resolution still goes on and refreshes
+ * the cache. After a failed refresh, the stale answer is served at once for
+ * the stale TTL before the client waits on the authorities again.
+ *
+ * By default the steps run on a fixed pool of a worker thread per CPU. In
+ * virtual thread mode each step runs on its own virtual thread.
+ */
+public class DNSResolver {
+    static final int DEFAULT_THREADS = Runtime.getRuntime().availableProcessors();
+    static final int DEFAULT_TIMEOUT = 5000;
+    static final int DEFAULT_STAGGER_DELAY = 200;
+    static final int DEFAULT_LOOKUP_BUDGET = 10000;
+    static final int MAX_QUERY_ROUNDS = 3;
+    static final double RETRANSMISSION_JITTER = 0.2;
+    static final int DNS_PORT = 53;
+    static final double DEFAULT_PREFETCH_FRACTION = 0.1;
+    static final int DEFAULT_PREFETCH_HITS = 2;
+    static final int MAX_PREFETCHES = 256;
+    static final int DEFAULT_STALE_TTL = 30;
+    static final int DEFAULT_STALE_ANSWER_TIMEOUT = 1800;
+    static final int DEFAULT_EDNS_PAYLOAD_SIZE = 1232;
+    static final int MIN_EDNS_PAYLOAD_SIZE = 512;
+    static final int OPT_LENGTH = 11;
+    static final int MAX_LABEL_LENGTH = 63;
+    static final int TCP_TIMEOUT_FACTOR = 3;
+
+    private final InetAddress rootServer;
+    private final DNSCache cache;
+    private final DNSTransport transport;
+    private final DNSServerStats serverStats = new DNSServerStats(DEFAULT_TIMEOUT);
+    private final ConcurrentHashMap<String, InFlightQuery> inFlight = new ConcurrentHashMap<String, InFlightQuery>();
+    private final ExecutorService executor;
+    private final Executor steps = this::runStep;
+    private final Semaphore prefetches = new Semaphore(MAX_PREFETCHES);   // the refreshes that may run at once
+    private int port = DNS_PORT;
+    private int staggerDelay = DEFAULT_STAGGER_DELAY;
+    private int lookupBudget = DEFAULT_LOOKUP_BUDGET;
+    private double prefetchFraction = DEFAULT_PREFETCH_FRACTION;
+    private int prefetchHits = DEFAULT_PREFETCH_HITS;
+    private int staleTTL = DEFAULT_STALE_TTL;
+    private int staleAnswerTimeout = DEFAULT_STALE_ANSWER_TIMEOUT;
+    private DNSNameTable nameTable = null;
+    private int ednsPayloadSize = DEFAULT_EDNS_PAYLOAD_SIZE;
+
+
+    /**
+     * A query in flight, shared by the lookups waiting for its response
+     */
+    static class InFlightQuery {
+        final CompletableFuture<byte[]> result = new CompletableFuture<byte[]>();
+        private CompletableFuture<byte[]> transportResponse;
+        private int waiters = 0;
+        private boolean abandoned = false;
+
+        /**
+         * Start waiting for the response of the query sent by the transport
+         *
+         * @param transportResponse the transport's future of the response
+         * @return the sender's waiter future
+         */
+        synchronized CompletableFuture<byte[]> start(CompletableFuture<byte[]> transportResponse) {
+            follow(transportResponse);
+            return join();
+        }
+
+        /**
+         * Wait for the response of the query sent again, over TCP
+         *
+         * @param transportResponse the transport's future of the new response
+         */
+        synchronized void follow(CompletableFuture<byte[]> transportResponse) {
+            this.transportResponse = transportResponse;
+            if (abandoned) {
+                transportResponse.cancel(false);
+            }
+        }
+
+        /**
+         * Join the query
+         *
+         * @return a waiter future completing with the response, or null if the query is finishing
+         */
+        synchronized CompletableFuture<byte[]> join() {
+            if (abandoned || result.isDone()) {
+                return null;
+            }
+
+            waiters++;
+            final CompletableFuture<byte[]> waiter = new CompletableFuture<byte[]>();
+            result.thenAccept(waiter::complete);
+            waiter.whenComplete((responseData, e) -> {
+                if (waiter.isCancelled()) {
+                    leave();
+                }
+            });
+            return waiter;
+        }
+
+        /**
+         * Leave the query, cancelling it if no lookup is waiting any more
+         */
+        private synchronized void leave() {
+            waiters--;
+            if (waiters == 0 && !result.isDone()) {
+                abandoned = true;
+                if (transportResponse != null) {
+                    transportResponse.cancel(false);
+                }
+            }
+        }
+    }
+
+
+    public DNSResolver(InetAddress rootServer) throws IOException {
+        this(rootServer, new DNSCache(), DEFAULT_THREADS);
+    }
+
+    public DNSResolver(InetAddress rootServer, DNSCache cache, int threads) throws IOException {
+        this(rootServer, cache, Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "dns-resolver");
+            thread.setDaemon(true);
+            return thread;
+        }));
+    }
+
+    /**
+     * @param rootServer the root name server
+     * @param cache the cache shared by the lookups
+     * @param executor the executor to run the steps of the lookups on, shut down when the resolver is closed
+     */
+    public DNSResolver(InetAddress rootServer, DNSCache cache, ExecutorService executor) throws IOException {
+        this.rootServer = rootServer;
+        this.cache = cache;
+        this.transport = new DNSTransport();
+        this.executor = executor;
+    }
+
+
+    /**
+     * Create a resolver running each step of a lookup on its own virtual thread
+     *
+     * @param rootServer the root name server
+     * @param cache the cache shared by the lookups
+     * @return the resolver
+     * @throws UnsupportedOperationException if the runtime has no virtual threads
+     */
+    public static DNSResolver withVirtualThreads(InetAddress rootServer, DNSCache cache) throws IOException {
+        return new DNSResolver(rootServer, cache, newVirtualThreadExecutor());
+    }
+
+
+    /**
+     * Create an executor that starts a virtual thread per task
+     *
+     * The executor is looked up reflectively so that the resolver still builds
+     * and runs on runtimes older than Java 21.
+     *
+     * @return the executor
+     * @throws UnsupportedOperationException if the runtime has no virtual threads
+     */
+    static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("virtual threads need Java 21 or later", e);
+        }
+    }
+
+
+    /**
+     * Look up a domain name
+     *
+     * @param fqdn the fully-qualified domain name to be resolved
+     * @param v6 whether to resolve an IPv4 or IPv6 address
+     * @return the future of the lookup result
+     */
+    public CompletableFuture<DNSLookupResult> lookup(String fqdn, boolean v6) {
+        return lookup(fqdn, v6, false);
+    }
+
+    /**
+     * Look up a domain name
+     *
+     * @param fqdn the fully-qualified domain name to be resolved
+     * @param v6 whether to resolve an IPv4 or IPv6 address
+     * @param trace whether to print the resolving trace
+     * @return the future of the lookup result
+     */
+    public CompletableFuture<DNSLookupResult> lookup(String fqdn, boolean v6, boolean trace) {
+        return lookup(fqdn, v6, trace, null);
+    }
+
+    /**
+     * Look up both the IPv4 and IPv6 addresses of a domain name
+     *
+     * The AAAA queries go along with the A lookup's queries, so the two share
+     * the walk down the delegations and are answered concurrently.
+     *
+     * @param fqdn the fully-qualified domain name to be resolved
+     * @param trace whether to print the resolving trace of the A lookup
+     * @return the future of the lookup results
+     */
+    public CompletableFuture<DNSDualStackResult> lookupDualStack(final String fqdn, final boolean trace) {
+        final ArrayList<DNSLookupContext> companions = new ArrayList<DNSLookupContext>();
+        return lookup(fqdn, false, trace, companions).thenCompose(v4 ->
+                companionResult(fqdn, trace, companions).thenApply(v6 -> new DNSDualStackResult(v4, v6)));
+    }
+
+    /**
+     * Look up a domain name
+     *
+     * @param fqdn the fully-qualified domain name to be resolved
+     * @param v6 whether to resolve an IPv4 or IPv6 address
+     * @param trace whether to print the resolving trace
+     * @param companions the list to add the AAAA companions of a dual-stack lookup to, or null
+     * @return the future of the lookup result
+     */
+    private CompletableFuture<DNSLookupResult> lookup(String fqdn, boolean v6, boolean trace, ArrayList<DNSLookupContext> companions) {
+        final CompletableFuture<DNSLookupResult> lookupResult = new CompletableFuture<DNSLookupResult>();
+        try {
+            CompletableFuture.supplyAsync(() -> {
+                // the time budget starts when the lookup starts to run
+                DNSLookupContext ctx = new DNSLookupContext(fqdn, v6, trace, lookupBudget);
+                ctx.companions = companions;
+                int qtype = (v6) ? DNSRecord.TYPE_AAAA : DNSRecord.TYPE_A;
+
+                // with only a stale answer cached, answer with it if the resolution is slow
+                DNSLookupResult staleResult = staleResult(fqdn, v6);
+                if (staleResult != null) {
+                    if (System.currentTimeMillis() - cache.getRefreshFailed(fqdn, qtype) < staleTTL * 1000L) {
+                        lookupResult.complete(staleResult);
+                    } else {
+                        lookupResult.completeOnTimeout(staleResult, staleAnswerTimeout, TimeUnit.MILLISECONDS);
+                    }
+                }
+
+                return resolve(ctx, fqdn, closestServers(ctx, fqdn), v6).handle((answers, e) -> {
+                    if (e != null) {
+                        ctx.fail(fqdn, DNSLookupResult.OTHER_ERROR_TTL);
+                        answers = null;
+                    }
+                    DNSLookupResult result = ctx.result(answers);
+
+                    // answer with the stale answer if the authorities did not
+                    if (answers == null && staleResult != null && (result.getErrorTTL() == DNSLookupResult.TIMEOUT_EXCEPTION_ERROR_TTL
+                            || result.getErrorTTL() == DNSLookupResult.OTHER_ERROR_TTL)) {
+                        cache.setRefreshFailed(fqdn, qtype);
+                        result = staleResult;
+                    }
+                    return result;
+                });
+            }, executor).thenCompose(Function.identity()).whenComplete((result, e) -> {
+                // a resolver error fails the lookup instead of leaving it pending
+                if (e != null) {
+                    lookupResult.completeExceptionally(e);
+                } else {
+                    lookupResult.complete(result);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // the resolver is closed
+            lookupResult.completeExceptionally(e);
+        }
+
+        return lookupResult;
+    }
+
+
+    /**
+     * Check if a domain name can be looked up: its labels are 1 to 63
+     * printable ASCII characters, and the whole name is at most 255 bytes
+     *
+     * @param fqdn the domain name
+     * @return whether the name can be looked up
+     */
+    public static boolean isValidName(String fqdn) {
+        try {
+            writeQuery(fqdn, false, 0);
+            return true;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+
+    /**
+     * Get the zone a referral delegates to, the closest owner of its NS
+     * records that encloses the name and is below the referring zone
+     *
+     * @param servers the authority records of the referral
+     * @param zone the zone of the referring server, "" for the root
+     * @param fqdn the name being resolved
+     * @return the delegated zone, or null if the referral delegates no such zone
+     */
+    private static String referredZone(ArrayList<DNSRecord> servers, String zone, String fqdn) {
+        String referred = null;
+        for (DNSRecord server : servers) {
+            String name = server.getName();
+            if (server.getTYPE() == DNSRecord.TYPE_NS && !name.equalsIgnoreCase(zone) && isInZone(name, zone) && isInZone(fqdn, name)
+                    && (referred == null || name.length() > referred.length())) {
+                referred = name;
+            }
+        }
+        return referred;
+    }
+
+
+    /**
+     * Get the CNAME chain of a name in an answer, the CNAME records from the
+     * name on, each owned by the previous one's canonical name, as long as
+     * their owners are in the answering zone
+     *
+     * @param answers the answer records
+     * @param fqdn the name
+     * @param zone the zone of the answering server, "" for the root
+     * @return the CNAME records of the chain, in order
+     */
+    private static ArrayList<DNSRecord> cnameChain(ArrayList<DNSRecord> answers, String fqdn, String zone) {
+        ArrayList<DNSRecord> chain = new ArrayList<DNSRecord>();
+        String name = fqdn;
+        // a chain has no more links than the answer has records, so a CNAME loop ends
+        while (isInZone(name, zone) && chain.size() < answers.size()) {
+            DNSRecord link = null;
+            for (DNSRecord answer : answers) {
+                if (answer.getTYPE() == DNSRecord.TYPE_CNAME && answer.getName().equalsIgnoreCase(name)) {
+                    link = answer;
+                    break;
+                }
+            }
+            if (link == null) {
+                break;
+            }
+            chain.add(link);
+            name = link.getRDATA();
+        }
+        return chain;
+    }
+
+
+    /**
+     * Check if a name is in a zone, the zone's name itself or below it
+     *
+     * @param name the name
+     * @param zone the zone, "" for the root
+     */
+    static boolean isInZone(String name, String zone) {
+        if (zone.isEmpty() || name.equalsIgnoreCase(zone)) {
+            return true;
+        }
+        int start = name.length() - zone.length();
+        return start > 0 && name.charAt(start - 1) == '.' && name.regionMatches(true, start, zone, 0, zone.length());
+    }
+
+
+    /**
+     * Check if a zone's servers answer for a name, unless the zone is cut
+     * below: the zone is the name's parent, or the name itself
+     *
+     * @param zone the zone, "" for the root
+     * @param fqdn the name
+     */
+    private static boolean isAnsweringZone(String zone, String fqdn) {
+        int dot = fqdn.indexOf('.');
+        String parent = (dot < 0) ? "" : fqdn.substring(dot + 1);
+        return zone.equalsIgnoreCase(fqdn) || zone.equalsIgnoreCase(parent);
+    }
+
+
+    /**
+     * Send the AAAA query of a dual-stack lookup to the servers that answer
+     * its A query, resolved concurrently as a companion of the A lookup
+     *
+     * @param ctx the context of the A lookup
+     * @param zone the zone the A query goes to
+     */
+    private void startCompanion(DNSLookupContext ctx, final DNSCache.Delegation zone) {
+        // the companion is not traced, its trace would interleave with the A lookup's
+        final DNSLookupContext companion = new DNSLookupContext(ctx.fqdn, true, false, ctx.remainingMillis());
+        companion.companion = true;
+        companion.companionResult = new CompletableFuture<DNSLookupResult>();
+        synchronized (ctx.companions) {
+            ctx.companions.add(companion);
+        }
+
+        resolve(companion, companion.fqdn, zone, true).whenComplete((answers, e) -> {
+            if (e != null) {
+                companion.fail(companion.fqdn, DNSLookupResult.OTHER_ERROR_TTL);
+                answers = null;
+            }
+            companion.companionResult.complete(companion.result(answers));
+        });
+    }
+
+
+    /**
+     * Get the AAAA result of a dual-stack lookup whose A lookup is done
+     *
+     * The last companion went to the servers that answered the A query, and is
+     * usually answered by now. If there is no companion, the A answer having
+     * been cached or no server having answered, or the last one was referred
+     * where the A walk was not, the AAAA lookup runs on its own. The result counts the work of all the
+     * companions.
+     *
+     * @param fqdn the fully-qualified domain name to be resolved
+     * @param trace whether to print the resolving trace of a lookup run on its own
+     * @param companions the companions of the A lookup
+     * @return the future of the AAAA lookup result
+     */
+    private CompletableFuture<DNSLookupResult> companionResult(final String fqdn, final boolean trace, ArrayList<DNSLookupContext> companions) {
+        final ArrayList<DNSLookupContext> steps;
+        synchronized (companions) {
+            steps = new ArrayList<DNSLookupContext>(companions);
+        }
+        if (steps.isEmpty()) {
+            return lookup(fqdn, true, trace);
+        }
+
+        CompletableFuture<?>[] stepResults = new CompletableFuture<?>[steps.size()];
+        for (int i = 0; i < stepResults.length; i++) {
+            stepResults[i] = steps.get(i).companionResult;
+        }
+        return CompletableFuture.allOf(stepResults).thenCompose(done -> {
+            DNSLookupContext last = steps.get(steps.size() - 1);
+            CompletableFuture<DNSLookupResult> resultFuture = (last.referred)
+                    ? lookup(fqdn, true, trace)
+                    : last.companionResult;
+
+            return resultFuture.thenApply(result -> {
+                // answer with a stale answer if the authorities did not, as lookup() does
+                if (!last.referred && result.getAnswers() == null && (result.getErrorTTL() == DNSLookupResult.TIMEOUT_EXCEPTION_ERROR_TTL
+                        || result.getErrorTTL() == DNSLookupResult.OTHER_ERROR_TTL)) {
+                    DNSLookupResult staleResult = staleResult(fqdn, true);
+                    if (staleResult != null) {
+                        cache.setRefreshFailed(fqdn, DNSRecord.TYPE_AAAA);
+                        staleResult.getStats().add(result.getStats());
+                        result = staleResult;
+                    }
+                }
+
+                for (DNSLookupContext step : steps) {
+                    if (step != last || last.referred) {
+                        result.getStats().add(step.stats);
+                    }
+                }
+                return result;
+            });
+        });
+    }
+
+
+    /**
+     * Get the result of a lookup answered with stale cached records
+     *
+     * @param fqdn the fully-qualified domain name to be resolved
+     * @param v6 whether to resolve an IPv4 or IPv6 address
+     * @return the result, or null if no stale answer is cached
+     */
+    private DNSLookupResult staleResult(String fqdn, boolean v6) {
+        if (staleTTL <= 0) {
+            return null;
+        }
+
+        int qtype = (v6) ? DNSRecord.TYPE_AAAA : DNSRecord.TYPE_A;
+        ArrayList<DNSRecord> answers = cache.getStale(fqdn, qtype, staleTTL);
+        if (answers == null) {
+            // a stale canonical name whose answer is cached, fresh or stale
+            answers = cache.getStale(fqdn, DNSRecord.TYPE_CNAME, staleTTL);
+            if (answers == null) {
+                return null;
+            }
+
+            DNSRecord cname = answers.get(0);
+            ArrayList<DNSRecord> cnameAnswers = cache.get(cname.getRDATA(), qtype);
+            if (cnameAnswers == null) {
+                cnameAnswers = cache.getStale(cname.getRDATA(), qtype, staleTTL);
+            }
+            if (cnameAnswers == null) {
+                return null;
+            }
+            cname.setRDATA(cnameAnswers.get(0).getRDATA());
+        }
+
+        DNSLookupStats stats = new DNSLookupStats();
+        stats.staleAnswers++;
+        return new DNSLookupResult(fqdn, v6, answers, null, 0, stats);
+    }
+
+
+    /**
+     * Close the resolver, lookups in progress fail
+     *
+     * The steps already queued on the executor still run, and the queries they
+     * send fail at once on the closed transport.
+     */
+    public void close() {
+        executor.shutdown();
+        transport.close();
+    }
+
+
+    public DNSCache getCache() {
+        return cache;
+    }
+
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    /**
+     * Set the timeout of servers with no RTT measurements, which is also the
+     * largest timeout of any server
+     *
+     * @param timeout the timeout in milliseconds
+     */
+    public void setTimeout(int timeout) {
+        serverStats.setMaxTimeout(timeout);
+    }
+
+    /**
+     * Set the time budget of a lookup, including the resolution of the name
+     * servers and canonical names it needs
+     *
+     * @param lookupBudget the budget in milliseconds
+     */
+    public void setLookupBudget(int lookupBudget) {
+        this.lookupBudget = lookupBudget;
+    }
+
+    /**
+     * Set when hot cached answers are refreshed before they expire
+     *
+     * @param fraction the fraction of the TTL before expiry in which to refresh, 0 disables prefetching
+     * @param minHits the cache hits that make an answer hot
+     */
+    public void setPrefetch(double fraction, int minHits) {
+        this.prefetchFraction = fraction;
+        this.prefetchHits = minHits;
+    }
+
+    /**
+     * Set when expired cached answers are served, how long they are kept is
+     * set with DNSCache.setStaleWindow()
+     *
+     * @param staleTTL the TTL of stale answers in seconds, 0 disables serving stale answers
+     * @param staleAnswerTimeout the time to wait for the resolution before answering stale, in milliseconds
+     */
+    public void setServeStale(int staleTTL, int staleAnswerTimeout) {
+        this.staleTTL = staleTTL;
+        this.staleAnswerTimeout = staleAnswerTimeout;
+    }
+
+    /**
+     * Intern the names of the responses and of the cached records in a name
+     * table, so that the records of a name share one String
+     *
+     * @param nameTable the name table, or null not to intern
+     */
+    public void setNameTable(DNSNameTable nameTable) {
+        this.nameTable = nameTable;
+        cache.setNameTable(nameTable);
+    }
+
+    /**
+     * Set the UDP payload size advertised in the queries' EDNS OPT record
+     *
+     * @param ednsPayloadSize the payload size in bytes, at least 512, or 0 to send queries without EDNS
+     */
+    public void setEDNSPayloadSize(int ednsPayloadSize) {
+        this.ednsPayloadSize = (ednsPayloadSize == 0) ? 0 : Math.max(MIN_EDNS_PAYLOAD_SIZE, Math.min(0xFFFF, ednsPayloadSize));
+    }
+
+    public DNSServerStats getServerStats() {
+        return serverStats;
+    }
+
+    /**
+     * Set the delay before the query is also sent to the next name server
+     *
+     * @param staggerDelay the delay in milliseconds
+     */
+    public void setStaggerDelay(int staggerDelay) {
+        this.staggerDelay = staggerDelay;
+    }
+
+
+    /**
+     * Get the closest known name servers of a domain name
+     *
+     * @param ctx the lookup context
+     * @param fqdn the fully-qualified domain name to be resolved
+     * @return the closest cached zone cut and its name servers, or the root zone and server
+     */
+    private DNSCache.Delegation closestServers(DNSLookupContext ctx, String fqdn) {
+        DNSCache.Delegation delegation = cache.getDelegation(fqdn);
+        if (delegation == null) {
+            ArrayList<InetAddress> servers = new ArrayList<InetAddress>();
+            servers.add(rootServer);
+            return new DNSCache.Delegation("", servers);
+        }
+
+        // count the referrals from the root that are skipped
+        ctx.stats.delegationCacheHits++;
+        ctx.stats.referralsSaved += delegation.getDepth();
+
+        return delegation;
+    }
+
+
+    /**
+     * Refresh a cached record set in the background if it is hot and about to expire
+     *
+     * @param ctx the lookup context
+     * @param fqdn the name of the record set
+     * @param type the type of the record set
+     * @param v6 whether the lookup resolves an IPv4 or IPv6 address
+     */
+    private void prefetch(DNSLookupContext ctx, final String fqdn, int type, final boolean v6) {
+        if (prefetchFraction <= 0 || !cache.claimPrefetch(fqdn, type, prefetchFraction, prefetchHits)) {
+            return;
+        }
+
+        ctx.stats.prefetches++;
+        // refreshes beyond the limit are dropped, the entries then just expire
+        if (!prefetches.tryAcquire()) {
+            return;
+        }
+        steps.execute(() -> {
+            DNSLookupContext refreshCtx = new DNSLookupContext(fqdn, v6, false, lookupBudget);
+            refreshCtx.refresh = true;
+            // the cached record set expires as usual if the refresh fails
+            resolve(refreshCtx, fqdn, closestServers(refreshCtx, fqdn), v6).whenComplete((answers, e) -> prefetches.release());
+        });
+    }
+
+
+    /**
+     * Run a step of a lookup on the executor, or in the calling thread once the
+     * executor is shut down, so that the lookups in progress run to their end
+     *
+     * @param step the step
+     */
+    private void runStep(Runnable step) {
+        try {
+            executor.execute(step);
+        } catch (RejectedExecutionException e) {
+            step.run();
+        }
+    }
+
+
+    /**
+     * Resolve the domain name
+     *
+     * The resolution does not block: each step runs when the responses it
+     * waits for arrive, and the future completes once the name is resolved.
+     *
+     * @param ctx the lookup context
+     * @param fqdn the fully-qualified domain name to be resolved
+     * @param zone the zone to search and its name servers to contact
+     * @param v6 whether to resolve an IPv4 or IPv6 address
+     * @return the future of the resolved answer records, completed with null if the resolution failed
+     */
+    private CompletableFuture<ArrayList<DNSRecord>> resolve(final DNSLookupContext ctx, final String fqdn, final DNSCache.Delegation zone, final boolean v6) {
+        // return the resolver if the resolving is too deep
+        if (ctx.resolveLevel == 0) {
+            ctx.fail(ctx.fqdn, DNSLookupResult.TOO_DEEP_RESOLVE_TTL);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        // search the cache, unless refreshing the name's cached answers
+        int qtype = (v6) ? DNSRecord.TYPE_AAAA : DNSRecord.TYPE_A;
+        boolean refreshing = ctx.refresh && fqdn.equals(ctx.fqdn);
+        ArrayList<DNSRecord> answersCached = (refreshing) ? null : cache.get(fqdn, qtype);
+        if (answersCached != null) {
+            ctx.stats.answerCacheHits++;
+            prefetch(ctx, fqdn, qtype, v6);
+            return CompletableFuture.completedFuture(answersCached);
+        }
+        final ArrayList<DNSRecord> cnamesCached = (refreshing) ? null : cache.get(fqdn, DNSRecord.TYPE_CNAME);
+        if (cnamesCached != null) {
+            ctx.stats.answerCacheHits++;
+            prefetch(ctx, fqdn, DNSRecord.TYPE_CNAME, v6);
+            // resolve the cached canonical name
+            DNSRecord cname = cnamesCached.get(0);
+            return resolveCNAME(ctx, cname, v6).thenApply(resolved -> (resolved) ? cnamesCached : null);
+        }
+        switch (cache.getNegative(fqdn, qtype)) {
+            case DNSResponse.RCODE_NAME_ERROR:
+                ctx.stats.negativeCacheHits++;
+                ctx.fail(fqdn, DNSLookupResult.NAME_ERROR_TTL);
+                return CompletableFuture.completedFuture(null);
+            case DNSResponse.RCODE_NO_ERROR:
+                ctx.stats.negativeCacheHits++;
+                ctx.fail(fqdn, DNSLookupResult.PSEUDO_ERROR_TTL);
+                return CompletableFuture.completedFuture(null);
+        }
+
+        // fail fast if the lookup's time budget is spent
+        if (ctx.remainingMillis() == 0) {
+            ctx.fail(fqdn, DNSLookupResult.TIMEOUT_EXCEPTION_ERROR_TTL);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        // write the query once for all its sends, the transport sets their IDs
+        byte[] query;
+        try {
+            query = writeQuery(fqdn, v6, ednsPayloadSize);
+        } catch (IllegalArgumentException e) {
+            // a name that cannot be queried
+            if (ctx.trace) {
+                System.out.println("Cannot query " + fqdn + ": " + e.getMessage());
+            }
+            ctx.fail(fqdn, DNSLookupResult.OTHER_ERROR_TTL);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        // send the AAAA query of a dual-stack lookup along with its A query to the servers that answer for the name
+        final boolean companionSent = ctx.companions != null && fqdn.equals(ctx.fqdn) && isAnsweringZone(zone.getZone(), fqdn);
+        if (companionSent) {
+            startCompanion(ctx, zone);
+        }
+
+        /* sending the query to the name servers and getting a response */
+        return queryRounds(ctx, query, fqdn, zone.getServers(), v6, 0).handle((response, e) -> {
+            if (e != null) {
+                // the transport is closed, the query cannot be sent
+                ctx.fail(fqdn, DNSLookupResult.OTHER_ERROR_TTL);
+                return CompletableFuture.<ArrayList<DNSRecord>>completedFuture(null);
+            }
+            return resolveResponse(ctx, fqdn, zone, v6, response, companionSent);
+        }).thenCompose(Function.identity());
+    }
+
+
+    /**
+     * Resolve the domain name from the response of a zone's name servers
+     *
+     * @param ctx the lookup context
+     * @param fqdn the fully-qualified domain name to be resolved
+     * @param zone the zone that was searched
+     * @param v6 whether to resolve an IPv4 or IPv6 address
+     * @param response the response, or null if there are no responses
+     * @param companionSent whether the AAAA query of a dual-stack lookup went along with the query
+     * @return the future of the resolved answer records, completed with null if the resolution failed
+     */
+    private CompletableFuture<ArrayList<DNSRecord>> resolveResponse(final DNSLookupContext ctx, final String fqdn, DNSCache.Delegation zone, final boolean v6,
+            DNSResponse response, boolean companionSent) {
+        // check if there is any response
+        if (response == null) {
+            // there are no responses, return
+            ctx.fail(fqdn, DNSLookupResult.TIMEOUT_EXCEPTION_ERROR_TTL);
+            return CompletableFuture.completedFuture(null);
+        }
+
+
+        /* parse the response */
+        int qtype = (v6) ? DNSRecord.TYPE_AAAA : DNSRecord.TYPE_A;
+        int responseID = response.getID();
+        int responseRCODE = response.getRCODE();
+        boolean responseAA = response.getAA();
+        int responseANCOUNT = response.getANCOUNT();
+        int responseNSCOUNT = response.getNSCOUNT();
+
+        // print the response trace
+        if (ctx.trace) {
+            printResponseTrace(responseID, responseAA, response.getAnswers(), response.getServers(), response.getAdditionals());
+        }
+
+        // servers that do not refer the A query elsewhere answer for the name, send them the AAAA query of a dual-stack lookup
+        boolean referral = responseRCODE == DNSResponse.RCODE_NO_ERROR && !responseAA && responseANCOUNT == 0 && responseNSCOUNT != 0;
+        if (ctx.companions != null && fqdn.equals(ctx.fqdn) && !companionSent && !referral) {
+            startCompanion(ctx, zone);
+        }
+
+        // check for errors
+        switch (responseRCODE) {
+            case DNSResponse.RCODE_NAME_ERROR: {
+                // the name error is for the end of the name's CNAME chain (RFC 2308, section 2.1)
+                ArrayList<DNSRecord> chain = cnameChain(response.getAnswers(), fqdn, zone.getZone());
+                String target = (chain.isEmpty()) ? fqdn : chain.get(chain.size() - 1).getRDATA();
+                if (!isInZone(target, zone.getZone())) {
+                    // the server does not answer for the end of the chain, follow the chain as an answer
+                    break;
+                }
+                cache.put(chain);
+                cache.putNegative(target, qtype, DNSResponse.RCODE_NAME_ERROR, response.getNegativeTTL());
+                ctx.fail(target, DNSLookupResult.NAME_ERROR_TTL);
+                return CompletableFuture.completedFuture(null);
+            }
+            case DNSResponse.RCODE_REFUSED_ERROR:
+            case DNSResponse.RCODE_SERVER_ERROR:
+                ctx.fail(fqdn, DNSLookupResult.OTHER_ERROR_TTL);
+                return CompletableFuture.completedFuture(null);
+            case DNSResponse.RCODE_NO_ERROR:
+                if (responseAA && responseANCOUNT == 0) {
+                    cache.putNegative(fqdn, qtype, DNSResponse.RCODE_NO_ERROR, response.getNegativeTTL());
+                    ctx.fail(fqdn, DNSLookupResult.PSEUDO_ERROR_TTL);
+                    return CompletableFuture.completedFuture(null);
+                }
+        }
+
+
+        if (responseANCOUNT == 0 && responseNSCOUNT != 0) {
+            // keep only what the server may tell: the NS records of a zone it
+            // delegates on the way to fqdn, and glue for names in its own zone
+            final String nextZone = referredZone(response.getServers(), zone.getZone(), fqdn);
+            if (nextZone == null) {
+                ctx.fail(fqdn, DNSLookupResult.OTHER_ERROR_TTL);
+                return CompletableFuture.completedFuture(null);
+            }
+            ArrayList<DNSRecord> servers = new ArrayList<DNSRecord>();
+            for (DNSRecord server : response.getServers()) {
+                if (server.getTYPE() == DNSRecord.TYPE_NS && server.getName().equalsIgnoreCase(nextZone)) {
+                    servers.add(server);
+                }
+            }
+            ArrayList<DNSRecord> additionals = new ArrayList<DNSRecord>();
+            for (DNSRecord additional : response.getAdditionals()) {
+                if ((additional.getTYPE() == DNSRecord.TYPE_A || additional.getTYPE() == DNSRecord.TYPE_AAAA)
+                        && isInZone(additional.getName(), zone.getZone())) {
+                    additionals.add(additional);
+                }
+            }
+
+            // put the name servers and their addresses into the cache
+            cache.put(servers);
+            cache.put(additionals);
+
+            // a companion leaves the referral to the A walk, which sends the next companion
+            if (ctx.companion && fqdn.equals(ctx.fqdn)) {
+                ctx.referred = true;
+                return CompletableFuture.completedFuture(null);
+            }
+
+            // get the next servers to query, the servers with a known address
+            final ArrayList<InetAddress> nextServers = new ArrayList<InetAddress>();
+            for (DNSRecord nextServerRecord : servers) {
+                ArrayList<DNSRecord> nextServerAddresses = cache.get(nextServerRecord.getRDATA(), DNSRecord.TYPE_A);
+                if (nextServerAddresses != null && !addAddresses(ctx, nextServers, nextServerAddresses)) {
+                    return CompletableFuture.completedFuture(null);
+                }
+            }
+            if (nextServers.isEmpty()) {
+                // resolve the next servers' domain names, those out of the zone as the
+                // others cannot be resolved without its glue
+                ArrayList<String> nextServerNames = new ArrayList<String>();
+                for (DNSRecord nextServerRecord : servers) {
+                    if (!isInZone(nextServerRecord.getRDATA(), nextZone)) {
+                        nextServerNames.add(nextServerRecord.getRDATA());
+                    }
+                }
+                if (nextServerNames.isEmpty()) {
+                    ctx.fail(fqdn, DNSLookupResult.OTHER_ERROR_TTL);
+                    return CompletableFuture.completedFuture(null);
+                }
+                return resolveServerAddresses(ctx, nextServerNames, 0).thenCompose(nextServerAddresses -> {
+                    if (nextServerAddresses == null) {
+                        return CompletableFuture.completedFuture(null);
+                    }
+
+                    // resolve the domain name recursively
+                    ctx.resolveLevel--;
+                    return resolve(ctx, fqdn, new DNSCache.Delegation(nextZone, nextServerAddresses), v6);
+                });
+            }
+
+            // resolve the domain name recursively
+            ctx.resolveLevel--;
+            return resolve(ctx, fqdn, new DNSCache.Delegation(nextZone, nextServers), v6);
+        }
+
+
+        // keep only what the server may answer: the name's CNAME chain in its
+        // zone, and the records at the end of the chain if that is in its zone
+        ArrayList<DNSRecord> chain = cnameChain(response.getAnswers(), fqdn, zone.getZone());
+        String target = (chain.isEmpty()) ? fqdn : chain.get(chain.size() - 1).getRDATA();
+        final ArrayList<DNSRecord> answers = new ArrayList<DNSRecord>();
+        if (isInZone(target, zone.getZone())) {
+            for (DNSRecord answer : response.getAnswers()) {
+                if (answer.getTYPE() == qtype && answer.getName().equalsIgnoreCase(target)) {
+                    answers.add(answer);
+                }
+            }
+        }
+
+        // put the answers into the cache
+        cache.put(chain);
+        cache.put(answers);
+
+        if (chain.isEmpty()) {
+            if (answers.isEmpty()) {
+                // an answer with no records for the name
+                ctx.fail(fqdn, DNSLookupResult.OTHER_ERROR_TTL);
+                return CompletableFuture.completedFuture(null);
+            }
+            // return the answers
+            return CompletableFuture.completedFuture(answers);
+        }
+        if (answers.isEmpty() && responseAA && isInZone(target, zone.getZone())) {
+            // the end of the chain has no records of the type (RFC 2308, section 2.2)
+            cache.putNegative(target, qtype, DNSResponse.RCODE_NO_ERROR, response.getNegativeTTL());
+            ctx.fail(target, DNSLookupResult.PSEUDO_ERROR_TTL);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        // resolve the canonical name, from the cache as far as the chain was
+        // answered, and with its own lookup where it leaves the zone
+        final DNSRecord cname = chain.get(0);
+        return resolveCNAME(ctx, cname, v6).thenApply(resolved -> {
+            if (!resolved) {
+                return null;
+            }
+            ArrayList<DNSRecord> cnames = new ArrayList<DNSRecord>();
+            cnames.add(cname);
+            return cnames;
+        });
+    }
+
+
+    /**
+     * Resolve the addresses of the name servers of a zone that came without
+     * glue, trying their names in order until one resolves
+     *
+     * @param ctx the lookup context
+     * @param names the domain names of the name servers
+     * @param index the index of the name to try
+     * @return the future of the addresses of the first name that resolves, completed with null if none does
+     */
+    private CompletableFuture<ArrayList<InetAddress>> resolveServerAddresses(final DNSLookupContext ctx, final ArrayList<String> names, final int index) {
+        // resolve the name server's domain name, starting at its closest known name servers
+        String name = names.get(index);
+        ctx.resolveLevel--;
+        return resolve(ctx, name, closestServers(ctx, name), false).thenCompose(answers -> {
+            ArrayList<InetAddress> addresses = new ArrayList<InetAddress>();
+            if (answers != null && !answers.isEmpty() && addAddresses(ctx, addresses, answers)) {
+                return CompletableFuture.completedFuture(addresses);
+            }
+            if (index + 1 == names.size()) {
+                return CompletableFuture.completedFuture(null);
+            }
+
+            // try the next name server, this one's failure is not the lookup's
+            ctx.recover();
+            return resolveServerAddresses(ctx, names, index + 1);
+        });
+    }
+
+
+    /**
+     * Add the addresses of a name server's address records
+     *
+     * @param ctx the lookup context
+     * @param addresses the addresses to add to
+     * @param records the address records
+     * @return whether the records hold addresses, else the lookup fails
+     */
+    private static boolean addAddresses(DNSLookupContext ctx, ArrayList<InetAddress> addresses, ArrayList<DNSRecord> records) {
+        for (DNSRecord record : records) {
+            try {
+                addresses.add(InetAddress.getByName(record.getRDATA()));
+            } catch (UnknownHostException e) {
+                ctx.fail(record.getName(), DNSLookupResult.OTHER_ERROR_TTL);
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    /**
+     * Send a query to the name servers of a zone, in rounds until one gets a
+     * response, MAX_QUERY_ROUNDS at most and within the lookup's budget
+     *
+     * @param ctx the lookup context
+     * @param query the query
+     * @param fqdn the FQDN to be resolved
+     * @param servers the name servers to query
+     * @param v6 whether to resolve an IPv4 or IPv6 address
+     * @param round the round, from 0
+     * @return the future of the response, completed with null if there are no responses,
+     *     or exceptionally if the query cannot be sent
+     */
+    private CompletableFuture<DNSResponse> queryRounds(final DNSLookupContext ctx, final byte[] query, final String fqdn, final ArrayList<InetAddress> servers,
+            final boolean v6, final int round) {
+        return new QueryRound(ctx, query, fqdn, servers, v6).start().thenCompose(response -> {
+            if (response != null || round + 1 >= MAX_QUERY_ROUNDS || ctx.remainingMillis() == 0) {
+                return CompletableFuture.completedFuture(response);
+            }
+            return queryRounds(ctx, query, fqdn, servers, v6, round + 1);
+        });
+    }
+
+
+    /**
+     * A round of a query to the name servers of a zone, which gets the first
+     * valid response
+     *
+     * The servers are ordered by smoothed RTT, with backed off servers last. The
+     * query is sent to the first server, and then to each next server after the
+     * stagger delay, or the server's RTO if that is shorter, if no valid
+     * response has arrived yet. Each query waits its server's RTO. The first
+     * response that is not a server failure or refusal wins, and the queries
+     * still outstanding are cancelled. Malformed responses are dropped, as if
+     * they had been lost.
+     *
+     * The servers that timed out in a round have their RTOs doubled for the
+     * next, and every timeout is jittered and cut to the time left in the
+     * lookup's budget. The round ends with the budget too, even if the
+     * transport stalls.
+     *
+     * No thread waits for the round: the sends are timed on the delayed
+     * executor, and the responses are handled as they arrive.
+     */
+    private class QueryRound {
+        private final DNSLookupContext ctx;
+        private final byte[] query;
+        private final String fqdn;
+        private final boolean v6;
+        private final ArrayList<InetAddress> servers;
+        private final ArrayList<CompletableFuture<byte[]>> responseFutures = new ArrayList<CompletableFuture<byte[]>>();
+        private final CompletableFuture<DNSResponse> result = new CompletableFuture<DNSResponse>();
+        private int next = 0;            // the next server to query
+        private boolean sent = false;    // whether all the queries of the round are sent
+        private int received = 0;        // the queries completed, answered or not
+        private DNSResponse failure;     // the last well-formed response that is not valid
+        private boolean finished = false;
+
+        QueryRound(DNSLookupContext ctx, byte[] query, String fqdn, ArrayList<InetAddress> servers, boolean v6) {
+            this.ctx = ctx;
+            this.query = query;
+            this.fqdn = fqdn;
+            this.v6 = v6;
+            this.servers = serverStats.order(servers);
+        }
+
+        /**
+         * Start the round
+         *
+         * @return the future of the first valid response, else the last failure response,
+         *     or null if there are no well-formed responses
+         */
+        CompletableFuture<DNSResponse> start() {
+            CompletableFuture.delayedExecutor(ctx.remainingMillis(), TimeUnit.MILLISECONDS, steps).execute(() -> finish(null));
+            sendNext();
+            return result;
+        }
+
+        /**
+         * Send the query to the next server, and time the send to the one after it
+         */
+        private void sendNext() {
+            InetAddress server;
+            int serverTimeout;
+            CompletableFuture<byte[]> responseFuture = null;
+            IOException error = null;
+            boolean more;
+            boolean done;
+            synchronized (this) {
+                if (finished) {
+                    return;
+                }
+
+                server = (next < servers.size()) ? servers.get(next++) : null;
+                serverTimeout = (server == null) ? 0 : retransmissionTimeout(ctx, server);
+                if (serverTimeout > 0) {
+                    /* sending a query */
+                    try {
+                        responseFuture = sendQuery(ctx, query, fqdn, server, serverTimeout, v6);
+                        responseFutures.add(responseFuture);
+                    } catch (IOException e) {
+                        error = e;
+                    }
+                }
+                more = serverTimeout > 0 && next < servers.size();
+                sent = !more;
+                // every query has completed, or none was sent
+                done = sent && received == responseFutures.size();
+            }
+
+            if (error != null) {
+                fail(error);
+                return;
+            }
+            if (responseFuture != null) {
+                /* getting a response */
+                final InetAddress respondingServer = server;
+                responseFuture.whenCompleteAsync((responseData, e) -> receive(respondingServer, responseData), steps);
+            }
+            if (more) {
+                // try the next server too if no valid response comes in time
+                CompletableFuture.delayedExecutor(Math.min(staggerDelay, serverTimeout), TimeUnit.MILLISECONDS, steps).execute(this::sendNext);
+            } else if (done) {
+                finish(null);
+            }
+        }
+
+        /**
+         * Handle the completion of a query
+         *
+         * @param server the server the query went to
+         * @param responseData the response, or null if there is none
+         */
+        private void receive(InetAddress server, byte[] responseData) {
+            DNSResponse response = null;
+            if (responseData != null) {
+                response = new DNSResponse(ByteBuffer.wrap(responseData), nameTable);
+                if (response.getEDNSPayloadSize() >= 0) {
+                    serverStats.recordEDNS(server, response.getEDNSPayloadSize());
+                }
+            }
+            if (response != null && isValidResponse(response)) {
+                finish(response);
+                return;
+            }
+
+            boolean done;
+            synchronized (this) {
+                received++;
+                // a malformed or truncated response counts as no response
+                if (response != null && response.isDecoded() && !response.getTC()) {
+                    failure = response;
+                }
+                done = sent && received == responseFutures.size();
+            }
+            if (done) {
+                finish(null);
+            }
+        }
+
+        /**
+         * End the round, cancelling the queries still outstanding
+         *
+         * @param response the valid response, or null to end with the last failure response
+         */
+        private void finish(DNSResponse response) {
+            ArrayList<CompletableFuture<byte[]>> outstanding;
+            synchronized (this) {
+                if (finished) {
+                    return;
+                }
+                finished = true;
+                if (response == null) {
+                    response = failure;
+                }
+                outstanding = new ArrayList<CompletableFuture<byte[]>>(responseFutures);
+            }
+
+            for (CompletableFuture<byte[]> responseFuture : outstanding) {
+                responseFuture.cancel(false);
+            }
+            result.complete(response);
+        }
+
+        /**
+         * End the round with a query that cannot be sent
+         */
+        private void fail(IOException e) {
+            synchronized (this) {
+                if (finished) {
+                    return;
+                }
+                finished = true;
+            }
+            result.completeExceptionally(e);
+        }
+    }
+
+
+    /**
+     * Send a query to a name server, or join the identical query in flight
+     *
+     * Queries are coalesced by name, type and server: while a query is in
+     * flight, other lookups sending the same query to the same server wait for
+     * its response instead of sending a duplicate. The shared query is only
+     * cancelled once every lookup waiting for it has cancelled. A query
+     * cancelled after its server's RTO, which the transport expires up to a
+     * timer tick late, counts as a timeout of the server.
+     *
+     * A server that rejects EDNS gets its query without the OPT record. If it
+     * rejects the query itself, the response counts as lost and the next round
+     * sends the plain query. A truncated response is replaced by the response
+     * to the query sent again over TCP, which the coalesced lookups wait for.
+     *
+     * @param ctx the lookup context
+     * @param query the query
+     * @param fqdn the FQDN to be resolved
+     * @param server the name server to query
+     * @param serverTimeout the time to wait for the response in milliseconds
+     * @param v6 whether to resolve an IPv4 or IPv6 address
+     * @return the future of this lookup's view of the response, completed with null on timeout
+     */
+    private CompletableFuture<byte[]> sendQuery(DNSLookupContext ctx, byte[] query, String fqdn, final InetAddress server, int serverTimeout, boolean v6) throws IOException {
+        final String key = DNSCache.key(fqdn, (v6) ? DNSRecord.TYPE_AAAA : DNSRecord.TYPE_A, DNSRecord.CLASS_IP) + "@" + server.getHostAddress();
+
+        while (true) {
+            final InFlightQuery created = new InFlightQuery();
+            InFlightQuery shared = inFlight.putIfAbsent(key, created);
+            if (shared != null) {
+                // wait for the query in flight, unless it is finishing
+                CompletableFuture<byte[]> waiter = shared.join();
+                if (waiter != null) {
+                    ctx.stats.queriesCoalesced++;
+                    return waiter;
+                }
+                inFlight.remove(key, shared);
+                continue;
+            }
+
+            final byte[] serverQuery = (hasOPT(query) && !serverStats.useEDNS(server)) ? withoutOPT(query) : query;
+            // connecting and the query take a couple more round trips than a datagram
+            final int tcpTimeout = (int) Math.min(ctx.remainingMillis(), (long) serverTimeout * TCP_TIMEOUT_FACTOR);
+            final long sent = System.nanoTime();
+            DNSTransport.QueryFuture transportResponse;
+            try {
+                transportResponse = transport.query(serverQuery, server, port, serverTimeout);
+            } catch (IOException e) {
+                inFlight.remove(key, created);
+                created.result.complete(null);
+                throw e;
+            }
+            ctx.stats.queriesSent++;
+            CompletableFuture<byte[]> waiter = created.start(transportResponse);
+
+            transportResponse.whenComplete((responseData, e) -> {
+                // update the server's RTT statistics
+                if (e == null && responseData == null) {
+                    serverStats.recordTimeout(server);
+                } else if (e instanceof CancellationException) {
+                    // cancelled when another server won, a query still unanswered past its RTO timed out all the same
+                    if (System.nanoTime() - sent >= serverTimeout * 1000000L) {
+                        serverStats.recordTimeout(server);
+                    }
+                } else if (e == null) {
+                    serverStats.recordResponse(server, (System.nanoTime() - sent) / 1e6);
+
+                    if (hasOPT(serverQuery) && rejectsEDNS(responseData)) {
+                        serverStats.recordEDNSRejected(server);
+                        responseData = null;
+                    } else if (isTruncated(responseData) && tcpTimeout > 0) {
+                        // ask again over TCP, the lookups keep waiting for the query
+                        try {
+                            CompletableFuture<byte[]> tcpResponse = transport.queryTCP(serverQuery, server, port, tcpTimeout);
+                            created.follow(tcpResponse);
+                            tcpResponse.whenComplete((tcpResponseData, tcpError) -> {
+                                inFlight.remove(key, created);
+                                created.result.complete((tcpError == null) ? tcpResponseData : null);
+                            });
+                            return;
+                        } catch (IOException tcpError) {
+                            responseData = null;
+                        }
+                    }
+                }
+
+                inFlight.remove(key, created);
+                created.result.complete((e == null) ? responseData : null);
+            });
+
+            // print the query trace
+            if (ctx.trace) {
+                printQueryTrace(transportResponse.getID(), fqdn, v6, server);
+            }
+
+            return waiter;
+        }
+    }
+
+
+    /**
+     * Get the time to wait for a server's response
+     *
+     * The backoff of the retransmissions is the server's own: each query that
+     * times out doubles its RTO (see DNSServerStats.recordTimeout()), so the
+     * next round waits twice as long.
+     *
+     * @param ctx the lookup context
+     * @param server the name server
+     * @return the server's RTO with jitter, at most the largest RTO and the time left in the lookup's budget
+     */
+    private int retransmissionTimeout(DNSLookupContext ctx, InetAddress server) {
+        double jitter = 1 + ThreadLocalRandom.current().nextDouble(-RETRANSMISSION_JITTER, RETRANSMISSION_JITTER);
+        long timeout = Math.min(serverStats.getMaxTimeout(), (long) Math.ceil(serverStats.getTimeout(server) * jitter));
+        return (int) Math.min(ctx.remainingMillis(), timeout);
+    }
+
+
+    /**
+     * Check if a response is valid, well-formed, whole and not a server failure or refusal
+     */
+    private static boolean isValidResponse(DNSResponse response) {
+        int rcode = response.getRCODE();
+        return response.isDecoded() && !response.getTC() && rcode != DNSResponse.RCODE_SERVER_ERROR && rcode != DNSResponse.RCODE_REFUSED_ERROR;
+    }
+
+
+    /**
+     * Resolve the canonical name of a CNAME record
+     *
+     * The record's RDATA and TTL are replaced by the canonical name's IP and
+     * its TTL.
+     *
+     * @param ctx the lookup context
+     * @param cname the CNAME record
+     * @param v6 whether to resolve an IPv4 or IPv6 address
+     * @return the future of whether the canonical name was resolved
+     */
+    private CompletableFuture<Boolean> resolveCNAME(DNSLookupContext ctx, final DNSRecord cname, boolean v6) {
+        String cnameName = cname.getRDATA();
+        // resolve the canonical name
+        ctx.resolveLevel--;
+        return resolve(ctx, cnameName, closestServers(ctx, cnameName), v6).thenApply(cnameAnswers -> {
+            if (cnameAnswers == null || cnameAnswers.isEmpty()) {
+                return false;
+            }
+
+            String cnameIP = cnameAnswers.get(0).getRDATA();
+            int cnameIPTTL = cnameAnswers.get(0).getTTL();
+
+            // set the canonical name's IP
+            cname.setRDATA(cnameIP);
+            // set the TTL as the canonical name's IP's TTL
+            cname.setTTL(cnameIPTTL);
+
+            return true;
+        });
+    }
+
+
+    /**
+     * Write a query template
+     *
+     * The query is written straight into an array of its exact size, with a
+     * zero ID. The transport patches each send's ID into its send buffer, so
+     * all the sends and retransmissions of a query share the template.
+     *
+     * The name is checked as it is written: its labels must be 1 to 63
+     * printable ASCII characters, and the whole name at most 255 bytes.
+     *
+     * @param fqdn the FQDN to query
+     * @param v6 whether to resolve an IPv4 or IPv6 address
+     * @param ednsPayloadSize the UDP payload size to advertise in an OPT record, or 0 for no OPT record
+     * @return the query
+     * @throws IllegalArgumentException if the name cannot be written as a QNAME
+     */
+    static byte[] writeQuery(String fqdn, boolean v6, int ednsPayloadSize) {
+        if (fqdn.endsWith(".")) {
+            fqdn = fqdn.substring(0, fqdn.length() - 1);
+        }
+
+        // the QNAME takes a length byte per label and a terminating 0 byte
+        int qnameLength = (fqdn.isEmpty()) ? 1 : fqdn.length() + 2;
+        if (qnameLength > DNSResponse.MAX_NAME_LENGTH) {
+            throw new IllegalArgumentException("name longer than " + DNSResponse.MAX_NAME_LENGTH + " bytes");
+        }
+        byte[] query = new byte[DNSResponse.HEADER_LENGTH + qnameLength + 4 + ((ednsPayloadSize > 0) ? OPT_LENGTH : 0)];
+
+        // write the query header
+        int i = writeHeader(query, ednsPayloadSize > 0);
+
+        // QNAME, each label's length is filled in when its end is found
+        if (!fqdn.isEmpty()) {
+            int labelLengthIndex = i++;
+            for (int j = 0; j < fqdn.length(); j++) {
+                char c = fqdn.charAt(j);
+                if (c == '.') {
+                    query[labelLengthIndex] = labelLength(i - labelLengthIndex - 1);
+                    labelLengthIndex = i++;
+                } else if (c > ' ' && c < 0x7F) {
+                    query[i++] = (byte) c;
+                } else {
+                    throw new IllegalArgumentException("character " + (int) c + " in name");
+                }
+            }
+            query[labelLengthIndex] = labelLength(i - labelLengthIndex - 1);
+        }
+        // terminate the domain name with a 0 byte
+        query[i++] = 0;
+        // QTYPE
+        query[i++] = 0;
+        query[i++] = (byte) ((v6) ? DNSRecord.TYPE_AAAA : DNSRecord.TYPE_A);
+        // QCLASS
+        query[i++] = 0;
+        query[i++] = DNSRecord.CLASS_IP;
+
+        if (ednsPayloadSize > 0) {
+            // OPT, the root name
+            query[i++] = 0;
+            // TYPE
+            query[i++] = 0;
+            query[i++] = DNSRecord.TYPE_OPT;
+            // CLASS, the UDP payload size
+            query[i++] = (byte) (ednsPayloadSize >> 8);
+            query[i++] = (byte) ednsPayloadSize;
+            // TTL, the extended RCODE, version 0 and flags, and RDLENGTH are 0
+        }
+
+        // return the query
+        return query;
+    }
+
+
+    /**
+     * Check the length of a label, a longer label would read as a compression pointer
+     */
+    private static byte labelLength(int length) {
+        if (length == 0) {
+            throw new IllegalArgumentException("empty label in name");
+        }
+        if (length > MAX_LABEL_LENGTH) {
+            throw new IllegalArgumentException("label longer than " + MAX_LABEL_LENGTH + " bytes");
+        }
+        return (byte) length;
+    }
+
+
+    /**
+     * Write the header of the query
+     *
+     * @param query the query, its ID is left zero
+     * @param opt whether the query has an OPT record in its additional section
+     * @return the index after the header
+     */
+    private static int writeHeader(byte[] query, boolean opt) {
+        // QR, OPCODE, AA, TC, RD, RA, Z, RCODE
+        // QR, the message is a query (0)
+        // OPCODE, the message is a standard query (0000)
+        // AA
+        // TC
+        // RD
+        query[2] = 0;
+        // RA
+        // Z
+        // RCODE
+        query[3] = 0;
+
+        // QDCOUNT, ANCOUNT, NSCOUNT, ARCOUNT
+        // QDCOUNT, there is 1 question
+        query[4] = 0;
+        query[5] = 1;
+        // ANCOUNT and NSCOUNT are 0
+        // ARCOUNT, the OPT record
+        query[11] = (byte) ((opt) ? 1 : 0);
+
+        return DNSResponse.HEADER_LENGTH;
+    }
+
+
+    /**
+     * Check if a query has an OPT record, which is its last record
+     */
+    private static boolean hasOPT(byte[] query) {
+        return query[DNSResponse.ARCOUNT_START_INDEX + 1] != 0;
+    }
+
+
+    /**
+     * Get a copy of a query without its OPT record
+     */
+    private static byte[] withoutOPT(byte[] query) {
+        byte[] plainQuery = Arrays.copyOf(query, query.length - OPT_LENGTH);
+        plainQuery[DNSResponse.ARCOUNT_START_INDEX + 1] = 0;
+        return plainQuery;
+    }
+
+
+    /**
+     * Check if a response has the TC bit set, it was truncated to fit in a datagram
+     */
+    private static boolean isTruncated(byte[] responseData) {
+        return (responseData[DNSResponse.FLAGS_START_INDEX] & DNSResponse.TC_MASK) != 0;
+    }
+
+
+    /**
+     * Check if a response rejects the EDNS query it answers, with FORMERR or
+     * NOTIMP and no OPT record, as a server that predates EDNS does
+     */
+    private static boolean rejectsEDNS(byte[] responseData) {
+        int rcode = responseData[DNSResponse.RCODE_START_INDEX] & DNSResponse.RCODE_MASK;
+        int arcount = ((responseData[DNSResponse.ARCOUNT_START_INDEX] & 0xFF) << 8) | (responseData[DNSResponse.ARCOUNT_START_INDEX + 1] & 0xFF);
+        return (rcode == DNSResponse.RCODE_FORMAT_ERROR || rcode == DNSResponse.RCODE_NOT_IMPLEMENTED_ERROR) && arcount == 0;
+    }
+
+
+    /**
+     * Print the query trace
+     *
+     * @param id the query ID
+     * @param fqdn the FQDN to be resolved
+     * @param v6 whether to resolve an IPv4 or IPv6 address
+     * @param server the name server to contact and search
+     */
+    private static void printQueryTrace(int id, String fqdn, boolean v6, InetAddress server) {
+        System.out.println("");
+        System.out.println("");
+
+        System.out.format("Query ID     %d %s  %s --> %s\n", id, fqdn, (v6) ? "AAAA" : "A", server.getHostAddress());
+    }
+
+
+    /**
+     * Print the response trace
+     *
+     * @param id the response ID
+     * @param aa whether the response is authoritative
+     * @param answers the answer records
+     * @param servers the name server records
+     * @param additionals the additional records
+     */
+    private static void printResponseTrace(int id, boolean aa, ArrayList<DNSRecord> answers, ArrayList<DNSRecord> servers, ArrayList<DNSRecord> additionals) {
+        System.out.format("Response ID: %d Authoritative %b\n", id, aa);
+
+        System.out.format("  Answers (%d)\n", answers.size());
+        for (DNSRecord answer : answers) {
+            String name = answer.getName();
+            int ttl = answer.getTTL();
+            String type = answer.getTYPEString();
+            String rdata = answer.getRDATA();
+            System.out.format("       %-30s %-10d %-4s %s\n", name, ttl, type, rdata);
+        }
+
+        System.out.format("  Nameservers (%d)\n", servers.size());
+        for (DNSRecord server : servers) {
+            String name = server.getName();
+            int ttl = server.getTTL();
+            String type = server.getTYPEString();
+            String rdata = server.getRDATA();
+            System.out.format("       %-30s %-10d %-4s %s\n", name, ttl, type, rdata);
+        }
+
+        System.out.format("  Additional Information (%d)\n", additionals.size());
+        for (DNSRecord additional : additionals) {
+            String name = additional.getName();
+            int ttl = additional.getTTL();
+            String type = additional.getTYPEString();
+            String rdata = additional.getRDATA();
+            System.out.format("       %-30s %-10d %-4s %s\n", name, ttl, type, rdata);
+        }
+    }
+}
@@ -1,6 +1,6 @@
-import java.util.Arrays;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.net.InetAddress;
+import java.util.Arrays;
 
 // Lots of the action associated with handling a DNS query is processing
 // the response. Although not required you might find the following skeleton of
@@ -11,20 +11,49 @@ import java.net.InetAddress;
 
 /**
  * A DNS response
+ *
+ * The response is read in place from a ByteBuffer. The constructor only reads
+ * the header and the offset of each record; the fields of a record are read on
+ * demand with the getRecord...() methods, and names, addresses and DNSRecord
+ * objects are only materialized when they are asked for.
+ *
+ * Records are indexed in message order: the answers, then the name servers,
+ * then the additional records.
+ *
+ * The constructor validates the whole message against its length: every name,
+ * with at most MAX_POINTER_HOPS compression pointers that each point back to
+ * a prior occurrence, every record's fields and the RDATA of the types the
+ * resolver reads. A malformed message is not decoded and has no records, and
+ * getDecodeError() tells why, so hostile or corrupt responses cost a bounded
+ * scan and never an exception. The records of a decoded message are read
+ * without further checks.
+ *
+ * The EDNS OPT pseudo-record (RFC 6891) is not one of the records: its
+ * advertised UDP payload size is read by getEDNSPayloadSize(), and its
+ * extended RCODE bits are part of getRCODE().
+ *
+ * Each name parsed is memoized by its start index, so that a suffix that many
+ * names point to, typically the zone, is decoded once per message. The parsed
+ * names can also be interned in a name table shared with other responses and
+ * the cache.
  */
 public class DNSResponse {
     // indexes and lengths
     static final int HEADER_LENGTH = 12;
+    static final int FLAGS_START_INDEX = 2;
+    static final int RCODE_START_INDEX = 3;
     static final int ANCOUNT_START_INDEX = 6;
     static final int NSCOUNT_START_INDEX = 8;
     static final int ARCOUNT_START_INDEX = 10;
     static final int QUERY_RESOURCE_COUNT_LENGTH = 2;
     static final int QUESTION_START_INDEX = HEADER_LENGTH;
 
-    // AA
-    static final byte[] AA_BIT = {1};
+    // AA and TC, in the flags byte
+    static final int AA_MASK = 0x04;
+    static final int TC_MASK = 0x02;
 
-    // RCODE
+    // RCODE, in the low 4 bits of its byte
+    static final int RCODE_MASK = 0x0F;
     public static final int RCODE_NO_ERROR = 0;
     public static final int RCODE_FORMAT_ERROR = 1;
     public static final int RCODE_SERVER_ERROR = 2;
@@ -32,22 +61,51 @@ public class DNSResponse {
     public static final int RCODE_NOT_IMPLEMENTED_ERROR = 4;
     public static final int RCODE_REFUSED_ERROR = 5;
 
-    // message compression
-    static final byte[] MESSAGE_COMPRESSION_2_MSB = {1, 1};
-
+    // message compression, the 2 most significant bits of a pointer
+    static final int MESSAGE_COMPRESSION_MASK = 0xC0;
+    static final int MESSAGE_COMPRESSION_OFFSET_MASK = 0x3FFF;
+    static final int MAX_POINTER_HOPS = 16;
+    static final int MAX_NAME_LENGTH = 255;
+    static final int CHECKED_SUFFIXES = 4;
+
+    // the errors of a malformed message, from getDecodeError()
+    public static final int DECODE_OK = 0;
+    public static final int DECODE_SHORT_HEADER = 1;     // shorter than the header
+    public static final int DECODE_BAD_NAME = 2;         // a name overruns its bounds, is too long or has a reserved label type
+    public static final int DECODE_BAD_POINTER = 3;      // a pointer that does not point back, or too many pointers
+    public static final int DECODE_SHORT_RECORD = 4;     // the question or record fields overrun the message
+    public static final int DECODE_BAD_RDATA = 5;        // RDATA whose length does not match its type
+    public static final int DECODE_BAD_OPT = 6;          // an OPT record not at the root, outside the additional section, or twice
+
+    private final ByteBuffer data;
     private int queryID;                  // this is for the response it must match the one in the request
     private int rcode;
     private int ancount = 0;          // number of answers
     private boolean decoded = false;      // Was this response successfully decoded
+    private int decodeError = DECODE_OK;
     private int nscount = 0;              // number of nscount response records
     private int arcount = 0;      // number of additional (alternate) response records
     private boolean authoritative = false;// Is this an authoritative record
+    private boolean truncated = false;    // Was the response truncated to fit in a datagram
+    private int negativeTTL = -1;         // TTL of a negative answer, from the SOA in the authority section
+    private int ednsPayloadSize = -1;     // the UDP payload size of the OPT record, -1 if there is none
+
+    // the start index of each record
+    private int[] recordOffsets;
 
-    // Note you will almost certainly need some additional instance variables.
-    // answers
-    ArrayList<DNSRecord> answers = new ArrayList();
-    ArrayList<DNSRecord> servers = new ArrayList();
-    ArrayList<DNSRecord> additionals = new ArrayList();
+    // the suffixes already validated while decoding, by pointer target: target + 1, hops and length
+    private long[] checkedSuffixes;
+
+    // the names parsed so far by start index + 1, in an open-addressing table created on demand
+    private int[] nameIndexes;
+    private String[] names;
+    private int nameCount = 0;
+    private final DNSNameTable nameTable; // interns the parsed names, or null
+
+    // the materialized records, created on demand
+    private ArrayList<DNSRecord> answers;
+    private ArrayList<DNSRecord> servers;
+    private ArrayList<DNSRecord> additionals;
 
 
     // When in trace mode you probably want to dump out all the relevant information in a response
@@ -56,214 +114,560 @@ public class DNSResponse {
     }
 
 
-    // The constructor: you may want to add additional parameters, but the two shown are
-    // probably the minimum that you need.
     public DNSResponse(byte[] responseData, int len) {
-        // The following are probably some of the things
-        // you will need to do.
+        this(ByteBuffer.wrap(responseData, 0, len));
+    }
+
+    /**
+     * @param data the response, from index 0 to the buffer's limit
+     */
+    public DNSResponse(ByteBuffer data) {
+        this(data, null);
+    }
+
+    /**
+     * @param data the response, from index 0 to the buffer's limit
+     * @param nameTable the table to intern the parsed names in, or null
+     */
+    public DNSResponse(ByteBuffer data, DNSNameTable nameTable) {
+        this.data = data;
+        this.nameTable = nameTable;
+
+        if (data.limit() < HEADER_LENGTH) {
+            decodeError = DECODE_SHORT_HEADER;
+            recordOffsets = new int[0];
+            return;
+        }
+
         // Extract the query ID
-        queryID = parseByteToIntValue(responseData, 0, 2);
+        queryID = data.getShort(0) & 0xFFFF;
 
-        // Make sure the message is a query response and determine
-        // if it is an authoritative response or note
-        authoritative = (checkBit(responseData[2], 5, AA_BIT)) ? true : false;
+        // determine if it is an authoritative response
+        authoritative = (data.get(FLAGS_START_INDEX) & AA_MASK) != 0;
+
+        // determine if it was truncated
+        truncated = (data.get(FLAGS_START_INDEX) & TC_MASK) != 0;
 
         // check the response code (RCODE)
-        rcode = parseBitsToIntValue(responseData[3], 4, 4);
+        rcode = data.get(RCODE_START_INDEX) & RCODE_MASK;
 
         // determine answer count
-        ancount = parseByteToIntValue(responseData, ANCOUNT_START_INDEX, QUERY_RESOURCE_COUNT_LENGTH);
+        ancount = data.getShort(ANCOUNT_START_INDEX) & 0xFFFF;
 
         // determine NS Count
-        nscount = parseByteToIntValue(responseData, NSCOUNT_START_INDEX, QUERY_RESOURCE_COUNT_LENGTH);
+        nscount = data.getShort(NSCOUNT_START_INDEX) & 0xFFFF;
 
         // determine additional record count
-        arcount = parseByteToIntValue(responseData, ARCOUNT_START_INDEX, QUERY_RESOURCE_COUNT_LENGTH);
+        arcount = data.getShort(ARCOUNT_START_INDEX) & 0xFFFF;
+
+        checkedSuffixes = new long[CHECKED_SUFFIXES];
+        decodeError = decodeRecords();
+        checkedSuffixes = null;
+        if (decodeError != DECODE_OK) {
+            // a malformed message has no records
+            ancount = 0;
+            nscount = 0;
+            arcount = 0;
+            negativeTTL = -1;
+            ednsPayloadSize = -1;
+            rcode = data.get(RCODE_START_INDEX) & RCODE_MASK;
+            recordOffsets = new int[0];
+            return;
+        }
 
-        // Extract list of answers, name server, and additional information response
-        // records
-        // determine the start index of the answer section
-        int questionEndIndex = QUESTION_START_INDEX + getNAMELength(responseData, QUESTION_START_INDEX);
+        decoded = true;
+    }
 
-        // get the answers
-        int answerStartIndex = questionEndIndex + 4;
-        for (int i = 0; i < ancount; i++) {
-            DNSRecord record = getRecord(responseData, answerStartIndex);
-            // TODO: cache the name
 
-            answers.add(record);
+    /**
+     * Find and validate the start of each record, skipping the question
+     *
+     * @return DECODE_OK, or the error of the first malformed field
+     */
+    private int decodeRecords() {
+        int limit = data.limit();
 
-            answerStartIndex += record.getRecordLength();
+        int questionEnd = checkName(QUESTION_START_INDEX, limit);
+        if (questionEnd < 0) {
+            return -questionEnd;
+        }
+        int recordStartIndex = questionEnd + 4;
+        if (recordStartIndex > limit) {
+            return DECODE_SHORT_RECORD;
         }
 
-        // get the name servers
-        int serverStartIndex = answerStartIndex;
-        for (int i = 0; i < nscount; i++) {
-            DNSRecord record = getRecord(responseData, serverStartIndex);
-
-            servers.add(record);
-
-            serverStartIndex += record.getRecordLength();
+        // each record takes at least 11 bytes, check before allocating for hostile counts
+        int recordCount = ancount + nscount + arcount;
+        if ((long) recordCount * (1 + DNSRecord.RDATA_NAMELENGTH_OFFSET) > limit - recordStartIndex) {
+            return DECODE_SHORT_RECORD;
         }
+        recordOffsets = new int[recordCount];
+        int optIndex = -1;
+        for (int i = 0; i < recordOffsets.length; i++) {
+            int fieldsIndex = checkName(recordStartIndex, limit);
+            if (fieldsIndex < 0) {
+                return -fieldsIndex;
+            }
+            int rdataIndex = fieldsIndex + DNSRecord.RDATA_NAMELENGTH_OFFSET;
+            if (rdataIndex > limit) {
+                return DECODE_SHORT_RECORD;
+            }
+            recordOffsets[i] = recordStartIndex;
+            int rdataEnd = rdataIndex + (data.getShort(fieldsIndex + DNSRecord.RDLENGTH_NAMELENGTH_OFFSET) & 0xFFFF);
+            if (rdataEnd > limit) {
+                return DECODE_SHORT_RECORD;
+            }
+            int type = data.getShort(fieldsIndex + DNSRecord.TYPE_NAMELENGTH_OFFSET) & 0xFFFF;
+            int cl = data.getShort(fieldsIndex + DNSRecord.CLASS_NAMELENGTH_OFFSET) & 0xFFFF;
+            if (!checkRDATA(rdataIndex, rdataEnd, type, cl)) {
+                return DECODE_BAD_RDATA;
+            }
 
-        // get the additional records
-        int additionalStartIndex = serverStartIndex;
-        for (int i = 0; i < arcount; i++) {
-            DNSRecord record = getRecord(responseData, additionalStartIndex);
+            // the SOA of a negative answer bounds how long it can be cached (RFC 2308)
+            if (i >= ancount && i < ancount + nscount && type == DNSRecord.TYPE_SOA && cl == DNSRecord.CLASS_IP) {
+                int minimum = data.getInt(rdataEnd - 4);
+                negativeTTL = Math.min(data.getInt(fieldsIndex + DNSRecord.TTL_NAMELENGTH_OFFSET), minimum);
+            }
 
-            additionals.add(record);
+            // the OPT record is taken out of the records, its CLASS is the payload size and its TTL the extended RCODE and flags
+            if (type == DNSRecord.TYPE_OPT) {
+                if (i < ancount + nscount || ednsPayloadSize >= 0 || fieldsIndex != recordStartIndex + 1) {
+                    return DECODE_BAD_OPT;
+                }
+                ednsPayloadSize = cl;
+                rcode |= (data.get(fieldsIndex + DNSRecord.TTL_NAMELENGTH_OFFSET) & 0xFF) << 4;
+                optIndex = i;
+            }
 
-            additionalStartIndex += record.getRecordLength();
+            recordStartIndex = rdataEnd;
         }
+
+        if (optIndex >= 0) {
+            System.arraycopy(recordOffsets, optIndex + 1, recordOffsets, optIndex, recordOffsets.length - optIndex - 1);
+            recordOffsets = Arrays.copyOf(recordOffsets, recordOffsets.length - 1);
+            arcount--;
+        }
+
+        return DECODE_OK;
     }
 
 
-    // You will probably want a methods to extract a compressed FQDN, IP address
-    // cname, authoritative DNS servers and other values like the query ID etc.
     /**
-     * Get the FQDN starting at i
+     * Validate the name starting at i
      *
-     * @param responseData the response data
-     * @param i the starting index to parse
-     * @return the record name
+     * The labels in place must end before end, the labels reached through
+     * pointers before the end of the message.
+     *
+     * @param i the starting index of the name
+     * @param end the end of the field that holds the name
+     * @return the index after the name in place, or the negated decoding error
      */
-    public static String parseName(byte[] responseData, int i) {
-        ArrayList<String> labels = new ArrayList<String>();
+    private int checkName(int i, int end) {
+        int next = -1;      // the index after the name in place, once a pointer has been followed
+        int length = 1;     // the length of the name in wire format, with the root label
+        int hops = 0;
+        int target = -1;    // the target of the first pointer, whose suffix is remembered
+        int lengthBeforeTarget = 0;
 
         int j = i;
-        while (responseData[j] != 0) {
-            if (checkBit(responseData[j], 0, MESSAGE_COMPRESSION_2_MSB)) {
-                // the label is a pointer
-                // parse the name recursively
-                int offset = parseByteToIntValue(responseData, j, 2) - 49152;
-                labels.add(parseName(responseData, offset));
+        while (true) {
+            int bound = (next < 0) ? end : data.limit();
+            if (j >= bound) {
+                return -DECODE_BAD_NAME;
+            }
+
+            int labelLength = data.get(j) & 0xFF;
+            if (labelLength == 0) {
                 break;
-            } else {
-                // the label is not a pointer
-                // parse the label
-                int labelLength = parseByteToIntValue(responseData, j, 1);
-                labels.add(new String(responseData, j+1, labelLength));
-                j += 1 + labelLength;
             }
+
+            if ((labelLength & MESSAGE_COMPRESSION_MASK) == MESSAGE_COMPRESSION_MASK) {
+                if (j + 2 > bound) {
+                    return -DECODE_BAD_NAME;
+                }
+                // a pointer must point back, so that every hop makes progress
+                int pointer = data.getShort(j) & MESSAGE_COMPRESSION_OFFSET_MASK;
+                if (pointer >= j || ++hops > MAX_POINTER_HOPS) {
+                    return -DECODE_BAD_POINTER;
+                }
+                if (next < 0) {
+                    next = j + 2;
+                    target = pointer;
+                    lengthBeforeTarget = length;
+                }
+
+                // a suffix already checked is not walked again
+                long checked = checkedSuffixes[pointer & (CHECKED_SUFFIXES - 1)];
+                if ((int) (checked >>> 32) == pointer + 1) {
+                    hops += (int) (checked >>> 16) & 0xFFFF;
+                    length += (int) checked & 0xFFFF;
+                    break;
+                }
+                j = pointer;
+                continue;
+            }
+
+            // the label types 01 and 10 are reserved
+            if ((labelLength & MESSAGE_COMPRESSION_MASK) != 0) {
+                return -DECODE_BAD_NAME;
+            }
+            length += 1 + labelLength;
+            if (length > MAX_NAME_LENGTH || j + 1 + labelLength > bound) {
+                return -DECODE_BAD_NAME;
+            }
+            j += 1 + labelLength;
+        }
+
+        // with the suffix taken from a checked one
+        if (hops > MAX_POINTER_HOPS) {
+            return -DECODE_BAD_POINTER;
+        }
+        if (length > MAX_NAME_LENGTH) {
+            return -DECODE_BAD_NAME;
+        }
+        if (target < 0) {
+            return j + 1;
         }
-        // TODO: get name with multi-level compression
 
-        // return the name
-        return joinStringArrayList(labels, ".");
+        // remember the suffix of the first pointer, with the hops after it
+        checkedSuffixes[target & (CHECKED_SUFFIXES - 1)] = ((long) (target + 1) << 32) | (hops - 1) << 16 | (length - lengthBeforeTarget);
+        return next;
     }
 
 
     /**
-     * Get NAME length
+     * Validate the RDATA of the types that are parsed
+     *
+     * @param i the start of the RDATA
+     * @param end the end of the RDATA
+     * @param type the type of the record
+     * @param cl the class of the record
+     * @return whether the RDATA is well-formed
+     */
+    private boolean checkRDATA(int i, int end, int type, int cl) {
+        if (cl != DNSRecord.CLASS_IP) {
+            return true;
+        }
+
+        switch (type) {
+            case DNSRecord.TYPE_A:
+                return end - i == 4;
+            case DNSRecord.TYPE_AAAA:
+                return end - i == 16;
+            case DNSRecord.TYPE_NS:
+            case DNSRecord.TYPE_CNAME:
+                return checkName(i, end) == end;
+            case DNSRecord.TYPE_SOA:
+                // MNAME, RNAME and five 32-bit fields
+                int mnameEnd = checkName(i, end);
+                int rnameEnd = (mnameEnd < 0) ? mnameEnd : checkName(mnameEnd, end);
+                return rnameEnd >= 0 && end - rnameEnd == 20;
+        }
+        return true;
+    }
+
+
+    /**
+     * Get the index just after the name starting at i
+     *
+     * @param i the starting index of the name
+     * @return the index of the field after the name
+     */
+    int skipName(int i) {
+        while (true) {
+            int labelLength = data.get(i) & 0xFF;
+
+            if (labelLength == 0) {
+                return i + 1;
+            }
+
+            if ((labelLength & MESSAGE_COMPRESSION_MASK) == MESSAGE_COMPRESSION_MASK) {
+                return i + 2;
+            }
+
+            i += 1 + labelLength;
+        }
+    }
+
+
+    /**
+     * Get the FQDN starting at i
+     *
+     * The labels are parsed up to the end of the name or to a pointer, whose
+     * suffix is parsed once and then taken from the memo. A pointer must point
+     * to a prior occurrence, as in RFC 1035, so that names cannot loop; a
+     * pointer that does not ends the name.
      *
-     * @param responseData the response data
      * @param i the starting index to parse
-     * @return the length of the name section
+     * @return the name
      */
-    private static int getNAMELength(byte[] responseData, int i) {
-        int length = 0;
+    public String parseName(int i) {
+        String name = getParsedName(i);
+        if (name != null) {
+            return name;
+        }
+
+        StringBuilder labels = new StringBuilder();
+        String suffix = "";
+
         int j = i;
         while (true) {
-            int labelLength = parseByteToIntValue(responseData, j, 1);
-
+            int labelLength = data.get(j) & 0xFF;
             if (labelLength == 0) {
-                return length + 1;
+                break;
             }
 
-            if (checkBit(responseData[j], 0, MESSAGE_COMPRESSION_2_MSB)) {
-                return length + 2;
+            if ((labelLength & MESSAGE_COMPRESSION_MASK) == MESSAGE_COMPRESSION_MASK) {
+                // the label is a pointer, the rest of the name is the pointed suffix
+                int suffixIndex = data.getShort(j) & MESSAGE_COMPRESSION_OFFSET_MASK;
+                if (suffixIndex < j) {
+                    suffix = parseName(suffixIndex);
+                }
+                break;
             }
 
-            length += 1 + labelLength;
+            // the label is not a pointer, parse the label
+            if (labels.length() > 0) {
+                labels.append('.');
+            }
+            for (int k = j + 1; k <= j + labelLength; k++) {
+                labels.append((char) (data.get(k) & 0xFF));
+            }
             j += 1 + labelLength;
         }
+
+        if (labels.length() == 0) {
+            name = suffix;
+        } else {
+            if (!suffix.isEmpty()) {
+                labels.append('.').append(suffix);
+            }
+            name = labels.toString();
+            if (nameTable != null) {
+                name = nameTable.intern(name);
+            }
+        }
+
+        putParsedName(i, name);
+        return name;
+    }
+
+
+    /**
+     * Get a memoized name
+     *
+     * @param i the starting index of the name
+     * @return the name, or null if it has not been parsed
+     */
+    private String getParsedName(int i) {
+        if (names == null) {
+            return null;
+        }
+
+        int mask = names.length - 1;
+        for (int slot = (i * 0x9E3779B9) >>> 16 & mask; nameIndexes[slot] != 0; slot = (slot + 1) & mask) {
+            if (nameIndexes[slot] == i + 1) {
+                return names[slot];
+            }
+        }
+        return null;
+    }
+
+
+    /**
+     * Memoize a parsed name, which is not memoized yet
+     */
+    private void putParsedName(int i, String name) {
+        if (names == null) {
+            nameIndexes = new int[8];
+            names = new String[8];
+        } else if ((nameCount + 1) * 4 > names.length * 3) {
+            // keep the table at most 3/4 full
+            int[] oldIndexes = nameIndexes;
+            String[] oldNames = names;
+            nameIndexes = new int[oldNames.length * 2];
+            names = new String[oldNames.length * 2];
+            nameCount = 0;
+            for (int slot = 0; slot < oldNames.length; slot++) {
+                if (oldIndexes[slot] != 0) {
+                    putParsedName(oldIndexes[slot] - 1, oldNames[slot]);
+                }
+            }
+        }
+
+        int mask = names.length - 1;
+        int slot = (i * 0x9E3779B9) >>> 16 & mask;
+        while (nameIndexes[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        nameIndexes[slot] = i + 1;
+        names[slot] = name;
+        nameCount++;
     }
 
 
     /**
      * Parse the bytes from i as an IPv4 address
      *
-     * @param bytes the response data
      * @param i the starting index to parse
      * @return the parsed IPv4 address
      */
-    private static String parseIPv4(byte[] bytes, int i) {
-        ArrayList<String> fields = new ArrayList<String>();
+    private String parseIPv4(int i) {
+        StringBuilder address = new StringBuilder(15);
 
         for (int j = 0; j < 4; j++) {
-            fields.add(Integer.toString(parseByteToIntValue(bytes, i+j, 1)));
+            if (j > 0) {
+                address.append('.');
+            }
+            address.append(data.get(i+j) & 0xFF);
         }
 
-        return joinStringArrayList(fields, ".");
+        return address.toString();
     }
 
 
     /**
      * Parse the bytes from i as an IPv6 address
      *
-     * @param bytes the response data
      * @param i the starting index to parse
      * @return the parsed IPv6 address
      */
-    private static String parseIPv6(byte[] bytes, int i) {
-        ArrayList<String> fields = new ArrayList<String>();
+    private String parseIPv6(int i) {
+        StringBuilder address = new StringBuilder(39);
 
         for (int j = 0; j < 8; j++) {
-            fields.add(Integer.toString(parseByteToIntValue(bytes, i+(j*2), 2), 16));
+            if (j > 0) {
+                address.append(':');
+            }
+            address.append(Integer.toHexString(data.getShort(i+(j*2)) & 0xFFFF));
         }
 
-        return joinStringArrayList(fields, ":");
+        return address.toString();
+    }
+
+
+    /**
+     * Parse the bytes from i as SOA RDATA
+     *
+     * @param i the starting index to parse
+     * @return the MNAME, RNAME, SERIAL, REFRESH, RETRY, EXPIRE and MINIMUM fields, separated by spaces
+     */
+    private String parseSOA(int i) {
+        String mname = parseName(i);
+        int rnameIndex = skipName(i);
+        String rname = parseName(rnameIndex);
+        int fieldsIndex = skipName(rnameIndex);
+
+        StringBuilder soa = new StringBuilder();
+        soa.append(mname).append(' ').append(rname);
+        for (int j = 0; j < 5; j++) {
+            soa.append(' ').append(data.getInt(fieldsIndex+(j*4)) & 0xFFFFFFFFL);
+        }
+
+        return soa.toString();
     }
 
 
     /**
      * Parse RDATA
      *
-     * @param responseData the response data
      * @param i the starting index to parse
      * @param type the type of the record
      * @param cl the class of the record
      * @return the parsed RDATA
      */
-    private static String parseRDATA(byte[] responseData, int i, int type, int cl) {
+    private String parseRDATA(int i, int type, int cl) {
         if (type == DNSRecord.TYPE_A && cl == DNSRecord.CLASS_IP) {
-            return parseIPv4(responseData, i);
+            return parseIPv4(i);
         } else if ((type == DNSRecord.TYPE_NS || type == DNSRecord.TYPE_CNAME) && cl == DNSRecord.CLASS_IP) {
-            return parseName(responseData, i);
+            return parseName(i);
         } else if (type == DNSRecord.TYPE_AAAA && cl == DNSRecord.CLASS_IP) {
-            return parseIPv6(responseData, i);
+            return parseIPv6(i);
+        } else if (type == DNSRecord.TYPE_SOA && cl == DNSRecord.CLASS_IP) {
+            return parseSOA(i);
         }
 
         return "";
     }
 
 
+    /**
+     * Get the number of records in all the sections
+     */
+    public int getRecordCount() {
+        return recordOffsets.length;
+    }
+
+    /**
+     * Get the index just after the name of record i, where its TYPE starts
+     */
+    private int getRecordFieldsIndex(int i) {
+        return skipName(recordOffsets[i]);
+    }
+
+    public String getRecordName(int i) {
+        return parseName(recordOffsets[i]);
+    }
+
+    public int getRecordType(int i) {
+        return data.getShort(getRecordFieldsIndex(i) + DNSRecord.TYPE_NAMELENGTH_OFFSET) & 0xFFFF;
+    }
+
+    public int getRecordClass(int i) {
+        return data.getShort(getRecordFieldsIndex(i) + DNSRecord.CLASS_NAMELENGTH_OFFSET) & 0xFFFF;
+    }
+
+    public int getRecordTTL(int i) {
+        return data.getInt(getRecordFieldsIndex(i) + DNSRecord.TTL_NAMELENGTH_OFFSET);
+    }
+
+    public int getRecordRDLength(int i) {
+        return data.getShort(getRecordFieldsIndex(i) + DNSRecord.RDLENGTH_NAMELENGTH_OFFSET) & 0xFFFF;
+    }
+
+    public int getRecordRDataIndex(int i) {
+        return getRecordFieldsIndex(i) + DNSRecord.RDATA_NAMELENGTH_OFFSET;
+    }
+
+    public String getRecordRDATA(int i) {
+        return parseRDATA(getRecordRDataIndex(i), getRecordType(i), getRecordClass(i));
+    }
+
+
     /**
      * Get the whole resource record
      *
-     * @param ressponseData the response data
-     * @param recordStartIndex the starting index of the record to parse
+     * @param i the index of the record
+     * @return the materialized record
      */
-    private static DNSRecord getRecord(byte[] responseData, int recordStartIndex) {
-        String name = parseName(responseData, recordStartIndex);
-        int nameLength = getNAMELength(responseData, recordStartIndex);
-        int type = parseByteToIntValue(responseData, recordStartIndex+nameLength+DNSRecord.TYPE_NAMELENGTH_OFFSET, DNSRecord.TYPE_LENGTH);
-        int cl = parseByteToIntValue(responseData, recordStartIndex+nameLength+DNSRecord.CLASS_NAMELENGTH_OFFSET, DNSRecord.CLASS_LENGTH);
-        int ttl = parseByteToIntValue(responseData, recordStartIndex+nameLength+DNSRecord.TTL_NAMELENGTH_OFFSET, DNSRecord.TTL_LENGTH);
-        int rdlength = parseByteToIntValue(responseData, recordStartIndex+nameLength+DNSRecord.RDLENGTH_NAMELENGTH_OFFSET, DNSRecord.RDLENGTH_LENGTH);
-        String rdata = parseRDATA(responseData, recordStartIndex+nameLength+DNSRecord.RDATA_NAMELENGTH_OFFSET, type, cl);
+    public DNSRecord getRecord(int i) {
+        int fieldsIndex = getRecordFieldsIndex(i);
+        int nameLength = fieldsIndex - recordOffsets[i];
+        int type = getRecordType(i);
+        int cl = getRecordClass(i);
+        int rdlength = getRecordRDLength(i);
         int recordLength = nameLength + 10 + rdlength;
 
-        return new DNSRecord(name, type, cl, ttl, rdlength, rdata, recordLength);
+        return new DNSRecord(getRecordName(i), type, cl, getRecordTTL(i), rdlength, parseRDATA(fieldsIndex + DNSRecord.RDATA_NAMELENGTH_OFFSET, type, cl), recordLength);
     }
 
 
-    // You will also want methods to extract the response records and record
-    // the important values they are returning. Note that an IPV6 reponse record
-    // is of type 28. It probably wouldn't hurt to have a response record class to hold
-    // these records.
+    /**
+     * Materialize the records from start to end (exclusive)
+     */
+    private ArrayList<DNSRecord> getRecords(int start, int end) {
+        ArrayList<DNSRecord> records = new ArrayList<DNSRecord>(end - start);
+        for (int i = start; i < end; i++) {
+            records.add(getRecord(i));
+        }
+        return records;
+    }
 
 
+    public ByteBuffer getData() {
+        return data;
+    }
+
     public int getID() {
         return queryID;
     }
@@ -272,6 +676,35 @@ public class DNSResponse {
         return authoritative;
     }
 
+    /**
+     * Check if the message was well-formed and its records can be read
+     */
+    public boolean isDecoded() {
+        return decoded;
+    }
+
+    /**
+     * Get why the message could not be decoded
+     *
+     * @return DECODE_OK if it was decoded, else one of the DECODE_ errors
+     */
+    public int getDecodeError() {
+        return decodeError;
+    }
+
+    /**
+     * Get the UDP payload size the responder advertised in its OPT record
+     *
+     * @return the payload size, or -1 if the response has no OPT record
+     */
+    public int getEDNSPayloadSize() {
+        return ednsPayloadSize;
+    }
+
+    public boolean getTC() {
+        return truncated;
+    }
+
     public int getRCODE() {
         return rcode;
     }
@@ -288,15 +721,33 @@ public class DNSResponse {
         return arcount;
     }
 
+    /**
+     * Get the TTL of a negative answer
+     *
+     * @return the smaller of the authority SOA's TTL and MINIMUM field, or -1 if there is no SOA
+     */
+    public int getNegativeTTL() {
+        return negativeTTL;
+    }
+
     public ArrayList<DNSRecord> getAnswers() {
+        if (answers == null) {
+            answers = getRecords(0, ancount);
+        }
         return answers;
     }
 
     public ArrayList<DNSRecord> getServers() {
+        if (servers == null) {
+            servers = getRecords(ancount, ancount + nscount);
+        }
         return servers;
     }
 
     public ArrayList<DNSRecord> getAdditionals() {
+        if (additionals == null) {
+            additionals = getRecords(ancount + nscount, recordOffsets.length);
+        }
         return additionals;
     }
 
@@ -308,7 +759,7 @@ public class DNSResponse {
         int value = 0;
 
         for (int j = 0; j < l; j++) {
-            value += parseByteToUnsignedInt(bytes[i+j]) * Math.pow(256, l-j-1);
+            value = (value << 8) | parseByteToUnsignedInt(bytes[i+j]);
         }
 
         return value;
@@ -321,54 +772,4 @@ public class DNSResponse {
     public static int parseByteToUnsignedInt(byte b) {
         return b & 0xFF;
     }
-
-
-    /**
-     * Check bits match in a byte
-     */
-    private static boolean checkBit(byte b, int i, byte[] bits) {
-        for (int j = 0; j < bits.length; j++) {
-            if (getBit(b, i+j) != bits[j]) {
-                return false;
-            }
-        }
-
-        return true;
-    }
-
-
-    /**
-     * Parse l bits from i as an integer
-     */
-    private static int parseBitsToIntValue(byte b, int i, int l) {
-        int value = 0;
-
-        for (int j = 0; j < l; j++) {
-            value += getBit(b, (i+j)) * Math.pow(2, l-j-1);
-        }
-
-        return value;
-    }
-
-
-    /**
-     * Get the (i+1)th most-significant bit in a byte
-     */
-    private static int getBit(byte b, int i) {
-        return (b >> (7-i)) & 1;
-    }
-
-
-    /**
-     * Join String arrays as 1 String
-     */
-    public static String joinStringArrayList(ArrayList<String> strings, String delimeter) {
-        String s = strings.get(0);
-
-        for (int i = 1; i < strings.size(); i++) {
-            s += delimeter + strings.get(i);
-        }
-
-        return s;
-    }
 }
@@ -0,0 +1,251 @@
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Round-trip time statistics, health and EDNS support of the name servers
+ *
+ * Each server keeps a smoothed RTT and RTT variance, updated as in RFC 6298,
+ * from which its retransmission timeout (RTO) is derived. The resolver queries
+ * the servers of a zone in order of smoothed RTT and waits each one's RTO.
+ *
+ * A timeout doubles the server's RTO. After several timeouts in a row the
+ * server is backed off for an exponentially growing penalty, and queried only
+ * after the healthy servers of its zone until the penalty has passed.
+ *
+ * Servers with no measurements yet get a small random smoothed RTT, so that
+ * they are tried before slow known servers and get measured.
+ *
+ * Servers are sent EDNS queries until they reject one with FORMERR or NOTIMP,
+ * as servers that predate EDNS do. They are then sent plain queries for
+ * EDNS_RETRY, so that each query does not cost a rejected round trip first,
+ * and are tried with EDNS again after that.
+ */
+public class DNSServerStats {
+    static final int MIN_RTO = 50;
+    static final int UNKNOWN_SRTT_MAX = 32;
+    static final int BACKOFF_TIMEOUTS = 3;
+    static final int BACKOFF_BASE = 1000;
+    static final int BACKOFF_MAX = 120000;
+    static final int EDNS_RETRY = 3600000;
+
+    private final ConcurrentHashMap<InetAddress, Server> servers = new ConcurrentHashMap<InetAddress, Server>();
+    private final Random random = new Random();
+    private volatile int maxTimeout;
+
+
+    /**
+     * The statistics of a name server
+     */
+    static class Server {
+        boolean measured = false;
+        double srtt;
+        double rttvar;
+        int rto;
+        int timeouts = 0;          // consecutive timeouts
+        long backoffUntil = 0;     // end of the back-off penalty, in System.currentTimeMillis() time
+        int ednsPayloadSize = -1;  // the UDP payload size the server advertised, -1 if unknown
+        long noEDNSUntil = 0;      // end of the time the server is sent plain queries, in System.currentTimeMillis() time
+
+        Server(double srtt, int rto) {
+            this.srtt = srtt;
+            this.rto = rto;
+        }
+    }
+
+
+    /**
+     * @param maxTimeout the timeout of servers with no measurements, and the largest RTO
+     */
+    public DNSServerStats(int maxTimeout) {
+        this.maxTimeout = maxTimeout;
+    }
+
+
+    public void setMaxTimeout(int maxTimeout) {
+        this.maxTimeout = maxTimeout;
+    }
+
+    /**
+     * Get the largest RTO of any server
+     *
+     * @return the largest RTO in milliseconds
+     */
+    public int getMaxTimeout() {
+        return maxTimeout;
+    }
+
+
+    private Server get(InetAddress address) {
+        return servers.computeIfAbsent(address, a -> new Server(random.nextInt(UNKNOWN_SRTT_MAX), maxTimeout));
+    }
+
+
+    /**
+     * Order the servers of a zone to be queried
+     *
+     * @param addresses the servers
+     * @return the servers that are not backed off by smoothed RTT, then the backed off servers
+     */
+    public ArrayList<InetAddress> order(ArrayList<InetAddress> addresses) {
+        long now = System.currentTimeMillis();
+        final HashMap<InetAddress, Double> keys = new HashMap<InetAddress, Double>();
+        for (InetAddress address : addresses) {
+            Server server = get(address);
+            synchronized (server) {
+                // backed off servers sort after all the others
+                keys.put(address, server.srtt + ((server.backoffUntil > now) ? Integer.MAX_VALUE : 0));
+            }
+        }
+
+        ArrayList<InetAddress> ordered = new ArrayList<InetAddress>(addresses);
+        ordered.sort(Comparator.comparingDouble(keys::get));
+        return ordered;
+    }
+
+
+    /**
+     * Get the time to wait for a response from a server
+     *
+     * @param address the server
+     * @return the server's RTO in milliseconds
+     */
+    public int getTimeout(InetAddress address) {
+        Server server = get(address);
+        synchronized (server) {
+            return server.rto;
+        }
+    }
+
+
+    /**
+     * Get the smoothed RTT of a server
+     *
+     * @param address the server
+     * @return the smoothed RTT in milliseconds, or -1 if the server has not been measured
+     */
+    public double getSRTT(InetAddress address) {
+        Server server = get(address);
+        synchronized (server) {
+            return (server.measured) ? server.srtt : -1;
+        }
+    }
+
+
+    /**
+     * Check if a server is backed off after repeated timeouts
+     */
+    public boolean isBackedOff(InetAddress address) {
+        Server server = get(address);
+        synchronized (server) {
+            return server.backoffUntil > System.currentTimeMillis();
+        }
+    }
+
+
+    /**
+     * Record a response from a server
+     *
+     * @param address the server
+     * @param rtt the round-trip time in milliseconds
+     */
+    public void recordResponse(InetAddress address, double rtt) {
+        Server server = get(address);
+        synchronized (server) {
+            if (!server.measured) {
+                server.srtt = rtt;
+                server.rttvar = rtt / 2;
+                server.measured = true;
+            } else {
+                server.rttvar = 0.75 * server.rttvar + 0.25 * Math.abs(server.srtt - rtt);
+                server.srtt = 0.875 * server.srtt + 0.125 * rtt;
+            }
+            server.rto = clampRTO(server.srtt + 4 * server.rttvar);
+            server.timeouts = 0;
+            server.backoffUntil = 0;
+        }
+    }
+
+
+    /**
+     * Record a query to a server that timed out
+     *
+     * @param address the server
+     */
+    public void recordTimeout(InetAddress address) {
+        Server server = get(address);
+        synchronized (server) {
+            server.rto = clampRTO(server.rto * 2.0);
+            server.timeouts++;
+            if (server.timeouts >= BACKOFF_TIMEOUTS) {
+                long penalty = Math.min(BACKOFF_MAX, (long) BACKOFF_BASE << Math.min(20, server.timeouts - BACKOFF_TIMEOUTS));
+                server.backoffUntil = System.currentTimeMillis() + penalty;
+            }
+        }
+    }
+
+
+    /**
+     * Check if a server is to be sent EDNS queries
+     *
+     * @param address the server
+     * @return false if the server rejected EDNS within EDNS_RETRY
+     */
+    public boolean useEDNS(InetAddress address) {
+        Server server = get(address);
+        synchronized (server) {
+            return server.noEDNSUntil <= System.currentTimeMillis();
+        }
+    }
+
+
+    /**
+     * Get the UDP payload size a server advertised in its last EDNS response
+     *
+     * @param address the server
+     * @return the payload size, or -1 if the server has not answered with EDNS
+     */
+    public int getEDNSPayloadSize(InetAddress address) {
+        Server server = get(address);
+        synchronized (server) {
+            return server.ednsPayloadSize;
+        }
+    }
+
+
+    /**
+     * Record an EDNS response from a server
+     *
+     * @param address the server
+     * @param payloadSize the UDP payload size of the response's OPT record
+     */
+    public void recordEDNS(InetAddress address, int payloadSize) {
+        Server server = get(address);
+        synchronized (server) {
+            server.ednsPayloadSize = payloadSize;
+            server.noEDNSUntil = 0;
+        }
+    }
+
+
+    /**
+     * Record that a server rejected an EDNS query, it is sent plain queries for EDNS_RETRY
+     *
+     * @param address the server
+     */
+    public void recordEDNSRejected(InetAddress address) {
+        Server server = get(address);
+        synchronized (server) {
+            server.ednsPayloadSize = -1;
+            server.noEDNSUntil = System.currentTimeMillis() + EDNS_RETRY;
+        }
+    }
+
+
+    private int clampRTO(double rto) {
+        return (int) Math.max(MIN_RTO, Math.min(maxTimeout, Math.ceil(rto)));
+    }
+}
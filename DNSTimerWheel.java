@@ -0,0 +1,132 @@
+/**
+ * A hashed timer wheel
+ *
+ * Timers are hashed by their deadline tick into a ring of slots, so that
+ * scheduling a timer and expiring a tick's timers take constant time however
+ * many timers are outstanding. A timer expires within one tick after its
+ * deadline. Timers further out than one turn of the wheel stay in their slot
+ * until the turn of their deadline comes.
+ *
+ * The wheel is not thread-safe, it is owned by the transport's event loop.
+ */
+public class DNSTimerWheel {
+    static final int DEFAULT_SLOTS = 512;
+    static final int DEFAULT_TICK = 10;
+
+    private final Timer[] slots;
+    private final int mask;
+    private final long tickNanos;
+    private long currentTick;   // the last tick whose timers were expired
+    private int size = 0;
+
+
+    /**
+     * A timer, linked into its slot
+     */
+    public static abstract class Timer {
+        long deadline;          // in System.nanoTime() time
+        Timer next;
+
+        /**
+         * Run when the timer expires
+         */
+        protected abstract void expire();
+    }
+
+
+    public DNSTimerWheel() {
+        this(DEFAULT_SLOTS, DEFAULT_TICK);
+    }
+
+    /**
+     * @param slotCount the number of slots, rounded up to a power of 2
+     * @param tickMillis the tick duration in milliseconds
+     */
+    public DNSTimerWheel(int slotCount, int tickMillis) {
+        int capacity = Integer.highestOneBit(Math.max(1, slotCount - 1)) << 1;
+        this.slots = new Timer[capacity];
+        this.mask = capacity - 1;
+        this.tickNanos = tickMillis * 1000000L;
+        this.currentTick = System.nanoTime() / tickNanos;
+    }
+
+
+    /**
+     * Schedule a timer
+     *
+     * @param timer the timer, not already scheduled
+     * @param deadline the deadline in System.nanoTime() time
+     */
+    public void schedule(Timer timer, long deadline) {
+        timer.deadline = deadline;
+
+        // timers already due expire on the next tick
+        long tick = Math.max(deadline / tickNanos, currentTick + 1);
+        int slot = (int) (tick & mask);
+        timer.next = slots[slot];
+        slots[slot] = timer;
+        size++;
+    }
+
+
+    /**
+     * Expire the timers of the ticks that have fully elapsed
+     *
+     * @param now the current time in System.nanoTime() time
+     */
+    public void advance(long now) {
+        long lastTick = now / tickNanos - 1;
+        if (lastTick <= currentTick) {
+            return;
+        }
+
+        // a whole turn visits every slot
+        long firstTick = Math.max(currentTick + 1, lastTick - mask);
+        for (long tick = firstTick; tick <= lastTick; tick++) {
+            expireSlot((int) (tick & mask), tick);
+        }
+        currentTick = lastTick;
+    }
+
+
+    /**
+     * Expire the timers of a slot whose deadline tick is at or before tick
+     */
+    private void expireSlot(int slot, long tick) {
+        Timer previous = null;
+        Timer timer = slots[slot];
+        while (timer != null) {
+            Timer next = timer.next;
+            if (timer.deadline / tickNanos <= tick) {
+                // unlink and expire the timer
+                if (previous == null) {
+                    slots[slot] = next;
+                } else {
+                    previous.next = next;
+                }
+                timer.next = null;
+                size--;
+                timer.expire();
+            } else {
+                previous = timer;
+            }
+            timer = next;
+        }
+    }
+
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get the tick duration in milliseconds
+     */
+    public long getTickMillis() {
+        return tickNanos / 1000000L;
+    }
+}
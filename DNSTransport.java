@@ -0,0 +1,654 @@
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A non-blocking UDP and TCP transport that multiplexes many outstanding
+ * queries over a small pool of datagram channels and a connection per server
+ *
+ * A single event loop thread drives all the channels through one selector. It
+ * sends the queued queries, matches the responses to the pending queries by
+ * query ID and source address, and expires each query on its own timer in a
+ * timer wheel. Sends and receives go through reusable direct buffers; the
+ * receive buffer holds the largest UDP payload, so EDNS responses of any
+ * advertised size are received whole. A datagram the socket has no room for
+ * is queued on its channel, in order, and sent once the channel is writable.
+ *
+ * Queries are templates shared by all their sends: each send copies the
+ * template into the send buffer and patches its own query ID in place there,
+ * so retransmitting a query re-encodes and copies nothing else.
+ *
+ * TCP queries (RFC 7766) go over one persistent connection per server, which
+ * the event loop drives on the same selector. The queries are pipelined on the
+ * connection, each framed by its length, without waiting for the previous
+ * responses, and the responses are matched by query ID in whatever order they
+ * come. A connection is kept open while it is in use and closed after
+ * TCP_IDLE_TIMEOUT without queries. Queries that were in flight on a connection
+ * the server closed are sent once more on a new connection, since servers
+ * close idle connections at will.
+ *
+ * A query's future completes with the response data, or with null if no
+ * response arrives before its timeout. Cancelling the future forgets the query,
+ * and a late response to it is dropped.
+ */
+public class DNSTransport {
+    static final int DEFAULT_CHANNELS = 4;
+    static final int MAX_MESSAGE_LENGTH = 512;
+    static final int MAX_UDP_PAYLOAD_SIZE = 65535;
+    static final int MAX_QUERY_LENGTH = 65535;  // the largest message the TCP length prefix frames
+    static final int TCP_IDLE_TIMEOUT = 10000;
+    static final int TCP_WRITE_BUFFER_SIZE = 2 + MAX_QUERY_LENGTH;
+
+    private final Selector selector;
+    private final DatagramChannel[] channels;
+    private final ConcurrentHashMap<Long, PendingQuery> pending = new ConcurrentHashMap<Long, PendingQuery>();
+    private final ConcurrentLinkedQueue<PendingQuery> outgoing = new ConcurrentLinkedQueue<PendingQuery>();
+    private final AtomicInteger nextChannel = new AtomicInteger();
+    private final Random random = new Random();
+    private final Thread eventLoop;
+    private volatile boolean closed = false;
+
+    // owned by the event loop thread
+    private final DNSTimerWheel timers = new DNSTimerWheel();
+    private final ByteBuffer sendBuffer = ByteBuffer.allocateDirect(MAX_QUERY_LENGTH);
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(MAX_UDP_PAYLOAD_SIZE);
+    private final HashMap<InetSocketAddress, TcpConnection> connections = new HashMap<InetSocketAddress, TcpConnection>();
+    private final HashMap<DatagramChannel, ArrayDeque<PendingQuery>> unsent = new HashMap<DatagramChannel, ArrayDeque<PendingQuery>>();
+
+
+    /**
+     * The future of a query's response, which knows the query's ID
+     */
+    public static class QueryFuture extends CompletableFuture<byte[]> {
+        private final int id;
+
+        QueryFuture(int id) {
+            this.id = id;
+        }
+
+        public int getID() {
+            return id;
+        }
+    }
+
+
+    /**
+     * A query waiting for its response, and its timeout timer
+     */
+    class PendingQuery extends DNSTimerWheel.Timer {
+        final long key;
+        final int id;
+        final byte[] query;
+        final InetSocketAddress server;
+        final DatagramChannel channel;
+        final int timeout;
+        final boolean tcp;
+        final QueryFuture response;
+        TcpConnection connection;   // the connection of a TCP query, once it is queued on one
+        boolean resent = false;     // whether a TCP query was sent again after its connection closed
+
+        PendingQuery(int id, byte[] query, InetSocketAddress server, DatagramChannel channel, int timeout, boolean tcp) {
+            this.key = key(id, server.getAddress());
+            this.id = id;
+            this.response = new QueryFuture(id);
+            this.query = query;
+            this.server = server;
+            this.channel = channel;
+            this.timeout = timeout;
+            this.tcp = tcp;
+        }
+
+        /**
+         * Complete the query with no response, unless it has completed already
+         */
+        @Override
+        protected void expire() {
+            if (pending.remove(key, this)) {
+                response.complete(null);
+            }
+            if (connection != null) {
+                connection.forget(this);
+            }
+        }
+    }
+
+
+    /**
+     * A persistent TCP connection to a server, with the queries pipelined on
+     * it, and its idle timer
+     */
+    class TcpConnection extends DNSTimerWheel.Timer {
+        final InetSocketAddress server;
+        private SocketChannel channel;
+        private SelectionKey key;
+        private boolean connected = false;
+        private boolean closed = false;
+        private long lastActive = System.nanoTime();
+
+        private final ArrayDeque<PendingQuery> queued = new ArrayDeque<PendingQuery>();    // not written yet
+        private final HashSet<PendingQuery> written = new HashSet<PendingQuery>();         // waiting for their responses
+        private final ByteBuffer writeBuffer = ByteBuffer.allocate(TCP_WRITE_BUFFER_SIZE); // flipped, the bytes still to write
+        private final ByteBuffer lengthBuffer = ByteBuffer.allocate(2);
+        private ByteBuffer messageBuffer;   // the response being read, null while its length is read
+
+        TcpConnection(InetSocketAddress server) {
+            this.server = server;
+            writeBuffer.flip();
+            try {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                connected = channel.connect(server);
+                key = channel.register(selector, (connected) ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, this);
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            timers.schedule(this, lastActive + TCP_IDLE_TIMEOUT * 1000000L);
+        }
+
+        /**
+         * Queue a query on the connection and write it if the connection is up
+         */
+        void enqueue(PendingQuery pendingQuery) {
+            pendingQuery.connection = this;
+            if (closed) {
+                // the connection failed to open
+                fail(pendingQuery);
+                return;
+            }
+            queued.add(pendingQuery);
+            lastActive = System.nanoTime();
+            if (connected) {
+                write();
+            }
+        }
+
+        /**
+         * Forget a query that timed out
+         */
+        void forget(PendingQuery pendingQuery) {
+            queued.remove(pendingQuery);
+            written.remove(pendingQuery);
+        }
+
+        /**
+         * Handle the events of the connection's selection key
+         */
+        void handle() {
+            if (closed || !key.isValid()) {
+                return;
+            }
+            try {
+                if (key.isConnectable()) {
+                    channel.finishConnect();
+                    connected = true;
+                    key.interestOps(SelectionKey.OP_READ);
+                    write();
+                }
+                if (!closed && key.isReadable()) {
+                    read();
+                }
+                if (!closed && key.isValid() && key.isWritable()) {
+                    write();
+                }
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        /**
+         * Write as many queued queries as the socket takes, each with its length and its ID patched in
+         */
+        private void write() {
+            writeBuffer.compact();
+            while (!queued.isEmpty() && writeBuffer.remaining() >= 2 + queued.peek().query.length) {
+                PendingQuery pendingQuery = queued.poll();
+                if (pendingQuery.response.isDone()) {
+                    continue;
+                }
+                writeBuffer.putShort((short) pendingQuery.query.length);
+                int start = writeBuffer.position();
+                writeBuffer.put(pendingQuery.query);
+                writeBuffer.putShort(start, (short) pendingQuery.id);
+                written.add(pendingQuery);
+            }
+            writeBuffer.flip();
+
+            try {
+                channel.write(writeBuffer);
+            } catch (IOException e) {
+                close();
+                return;
+            }
+
+            // wait until the socket takes more
+            boolean more = writeBuffer.hasRemaining() || !queued.isEmpty();
+            key.interestOps(SelectionKey.OP_READ | ((more) ? SelectionKey.OP_WRITE : 0));
+        }
+
+        /**
+         * Read the responses, each preceded by its length
+         */
+        private void read() throws IOException {
+            while (true) {
+                ByteBuffer buffer = (messageBuffer != null) ? messageBuffer : lengthBuffer;
+                if (buffer.hasRemaining() && channel.read(buffer) < 0) {
+                    // closed by the server
+                    close();
+                    return;
+                }
+                if (buffer.hasRemaining()) {
+                    return;
+                }
+
+                if (messageBuffer == null) {
+                    messageBuffer = ByteBuffer.allocate(lengthBuffer.getShort(0) & 0xFFFF);
+                    lengthBuffer.clear();
+                } else {
+                    // the response is read into its own array, which is handed over as it is
+                    byte[] responseData = messageBuffer.array();
+                    messageBuffer = null;
+                    complete(responseData);
+                }
+            }
+        }
+
+        /**
+         * Complete the query a response answers
+         */
+        private void complete(byte[] responseData) {
+            lastActive = System.nanoTime();
+            if (responseData.length < DNSResponse.HEADER_LENGTH) {
+                return;
+            }
+
+            int id = ((responseData[0] & 0xFF) << 8) | (responseData[1] & 0xFF);
+            long queryKey = key(id, server.getAddress());
+            PendingQuery pendingQuery = pending.get(queryKey);
+            if (pendingQuery == null || pendingQuery.connection != this || !pending.remove(queryKey, pendingQuery)) {
+                return;
+            }
+            written.remove(pendingQuery);
+            pendingQuery.response.complete(responseData);
+        }
+
+        /**
+         * Close the connection when it has been idle for TCP_IDLE_TIMEOUT
+         */
+        @Override
+        protected void expire() {
+            if (closed) {
+                return;
+            }
+
+            // forget the queries cancelled meanwhile
+            written.removeIf(pendingQuery -> pendingQuery.response.isDone());
+            queued.removeIf(pendingQuery -> pendingQuery.response.isDone());
+
+            long now = System.nanoTime();
+            long idleDeadline = lastActive + TCP_IDLE_TIMEOUT * 1000000L;
+            if (written.isEmpty() && queued.isEmpty() && now >= idleDeadline) {
+                close();
+            } else {
+                timers.schedule(this, Math.max(idleDeadline, now + TCP_IDLE_TIMEOUT * 1000000L));
+            }
+        }
+
+        /**
+         * Close the connection, sending the queries in flight on it once more on a new connection
+         */
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            connections.remove(server, this);
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                if (channel != null) {
+                    channel.close();
+                }
+            } catch (IOException e) {
+                // closing anyway
+            }
+
+            // a connection that never came up fails its queries, an established one resends them once
+            ArrayList<PendingQuery> unanswered = new ArrayList<PendingQuery>(written);
+            unanswered.addAll(queued);
+            written.clear();
+            queued.clear();
+            for (PendingQuery pendingQuery : unanswered) {
+                if (pendingQuery.response.isDone()) {
+                    continue;
+                }
+                if (connected && !pendingQuery.resent && !DNSTransport.this.closed) {
+                    pendingQuery.resent = true;
+                    connection(server).enqueue(pendingQuery);
+                } else {
+                    fail(pendingQuery);
+                }
+            }
+        }
+
+        private void fail(PendingQuery pendingQuery) {
+            if (pending.remove(pendingQuery.key, pendingQuery)) {
+                pendingQuery.response.complete(null);
+            }
+        }
+    }
+
+
+    public DNSTransport() throws IOException {
+        this(DEFAULT_CHANNELS);
+    }
+
+    public DNSTransport(int channelCount) throws IOException {
+        selector = Selector.open();
+        channels = new DatagramChannel[channelCount];
+        for (int i = 0; i < channelCount; i++) {
+            channels[i] = DatagramChannel.open();
+            channels[i].configureBlocking(false);
+            channels[i].bind(null);
+            channels[i].register(selector, SelectionKey.OP_READ);
+            unsent.put(channels[i], new ArrayDeque<PendingQuery>());
+        }
+
+        eventLoop = new Thread(this::run, "dns-transport");
+        eventLoop.setDaemon(true);
+        eventLoop.start();
+    }
+
+
+    /**
+     * Send a query
+     *
+     * A free query ID for the server is chosen, and the query is queued for the
+     * event loop to send with that ID.
+     *
+     * @param query the query template, which is not changed and must not be changed until the future completes
+     * @param server the name server to send the query to
+     * @param port the name server's port
+     * @param timeout the time to wait for the response in milliseconds
+     * @return the future of the response data, completed with null on timeout, or exceptionally if it cannot be sent
+     * @throws IllegalArgumentException if the query is shorter than a header or longer than MAX_QUERY_LENGTH
+     */
+    public QueryFuture query(byte[] query, InetAddress server, int port, int timeout) throws IOException {
+        return send(query, server, port, timeout, false);
+    }
+
+
+    /**
+     * Send a query over TCP, on the server's persistent connection
+     *
+     * @param query the query template, which is not changed and must not be changed until the future completes
+     * @param server the name server to send the query to
+     * @param port the name server's port
+     * @param timeout the time to wait for the response in milliseconds, connecting included
+     * @return the future of the response data, completed with null on timeout or if the connection fails
+     */
+    public QueryFuture queryTCP(byte[] query, InetAddress server, int port, int timeout) throws IOException {
+        return send(query, server, port, timeout, true);
+    }
+
+
+    private QueryFuture send(byte[] query, InetAddress server, int port, int timeout, boolean tcp) throws IOException {
+        if (closed) {
+            throw new IOException("transport closed");
+        }
+        if (query.length < DNSResponse.HEADER_LENGTH || query.length > MAX_QUERY_LENGTH) {
+            throw new IllegalArgumentException("query length " + query.length);
+        }
+
+        InetSocketAddress serverAddress = new InetSocketAddress(server, port);
+        DatagramChannel channel = (tcp) ? null : channels[Math.floorMod(nextChannel.getAndIncrement(), channels.length)];
+
+        // register the query under a query ID not yet pending for the server
+        PendingQuery pendingQuery;
+        do {
+            pendingQuery = new PendingQuery(random.nextInt(1 << 16), query, serverAddress, channel, timeout, tcp);
+        } while (pending.putIfAbsent(pendingQuery.key, pendingQuery) != null);
+
+        // forget the query if it is cancelled
+        final PendingQuery cancellable = pendingQuery;
+        pendingQuery.response.whenComplete((responseData, e) -> {
+            if (e != null) {
+                pending.remove(cancellable.key, cancellable);
+            }
+        });
+
+        // hand the query to the event loop
+        outgoing.add(pendingQuery);
+        selector.wakeup();
+
+        return pendingQuery.response;
+    }
+
+
+    /**
+     * Close the channels, pending queries complete with no response
+     */
+    public void close() {
+        closed = true;
+        selector.wakeup();
+        try {
+            eventLoop.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        for (TcpConnection connection : new ArrayList<TcpConnection>(connections.values())) {
+            connection.close();
+        }
+        for (DatagramChannel channel : channels) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // closing anyway
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // closing anyway
+        }
+
+        for (PendingQuery pendingQuery : pending.values()) {
+            pendingQuery.response.complete(null);
+        }
+        pending.clear();
+    }
+
+
+    /**
+     * Run the event loop
+     */
+    private void run() {
+        while (!closed) {
+            try {
+                // wait for responses until the next timer tick
+                timers.advance(System.nanoTime());
+                long wait = (timers.isEmpty()) ? 0 : timers.getTickMillis();
+                selector.select(wait);
+
+                // receive the responses
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.attachment() instanceof TcpConnection) {
+                        ((TcpConnection) key.attachment()).handle();
+                    } else {
+                        if (key.isValid() && key.isReadable()) {
+                            receive((DatagramChannel) key.channel());
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            flush((DatagramChannel) key.channel());
+                        }
+                    }
+                }
+
+                // send the queued queries
+                sendQueries();
+            } catch (IOException e) {
+                // keep the loop running, the affected queries time out
+            }
+        }
+    }
+
+
+    /**
+     * Send the queued queries and start their timers
+     *
+     * A query that cannot be sent fails on its own, the event loop and the
+     * other queries go on.
+     */
+    private void sendQueries() {
+        PendingQuery pendingQuery;
+        while ((pendingQuery = outgoing.poll()) != null) {
+            try {
+                send(pendingQuery);
+            } catch (RuntimeException e) {
+                if (pending.remove(pendingQuery.key, pendingQuery)) {
+                    pendingQuery.response.completeExceptionally(e);
+                }
+            }
+        }
+    }
+
+
+    private void send(PendingQuery pendingQuery) {
+        timers.schedule(pendingQuery, System.nanoTime() + pendingQuery.timeout * 1000000L);
+
+        if (pendingQuery.tcp) {
+            if (!pendingQuery.response.isDone()) {
+                connection(pendingQuery.server).enqueue(pendingQuery);
+            }
+            return;
+        }
+
+        // keep the order of the queries waiting for room on the channel
+        ArrayDeque<PendingQuery> channelUnsent = unsent.get(pendingQuery.channel);
+        if (!channelUnsent.isEmpty() || !write(pendingQuery)) {
+            channelUnsent.add(pendingQuery);
+            pendingQuery.channel.keyFor(selector).interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+
+    /**
+     * Send the queries waiting for room on a channel, as many as it takes
+     *
+     * @param channel the channel that became writable
+     */
+    private void flush(DatagramChannel channel) {
+        ArrayDeque<PendingQuery> channelUnsent = unsent.get(channel);
+        while (!channelUnsent.isEmpty()) {
+            PendingQuery pendingQuery = channelUnsent.peek();
+            // queries that timed out or were cancelled meanwhile are not sent
+            if (!pendingQuery.response.isDone() && !write(pendingQuery)) {
+                return;
+            }
+            channelUnsent.poll();
+        }
+        channel.keyFor(selector).interestOps(SelectionKey.OP_READ);
+    }
+
+
+    /**
+     * Write a UDP query to its channel, with its ID patched in
+     *
+     * @param pendingQuery the query
+     * @return whether the query was sent, or lost, false if the socket had no room for it
+     */
+    private boolean write(PendingQuery pendingQuery) {
+        sendBuffer.clear();
+        sendBuffer.put(pendingQuery.query);
+        // patch the query ID in place, the template is shared by all its sends
+        sendBuffer.putShort(0, (short) pendingQuery.id);
+        sendBuffer.flip();
+        try {
+            return pendingQuery.channel.send(sendBuffer, pendingQuery.server) > 0;
+        } catch (IOException e) {
+            // the query is lost, it times out
+            return true;
+        }
+    }
+
+
+    /**
+     * Get the TCP connection to a server, opening it if there is none
+     */
+    private TcpConnection connection(InetSocketAddress server) {
+        TcpConnection connection = connections.get(server);
+        if (connection == null) {
+            connection = new TcpConnection(server);
+            if (!connection.closed) {
+                connections.put(server, connection);
+            }
+        }
+        return connection;
+    }
+
+
+    /**
+     * Receive the responses on a channel and complete their pending queries
+     *
+     * @param channel the channel to receive the responses on
+     */
+    private void receive(DatagramChannel channel) throws IOException {
+        while (true) {
+            receiveBuffer.clear();
+            SocketAddress source = channel.receive(receiveBuffer);
+            if (source == null) {
+                return;
+            }
+            receiveBuffer.flip();
+
+            if (receiveBuffer.remaining() < DNSResponse.HEADER_LENGTH) {
+                continue;
+            }
+
+            // match the response to its query by the ID, source address and channel
+            InetSocketAddress sourceAddress = (InetSocketAddress) source;
+            int id = receiveBuffer.getShort(0) & 0xFFFF;
+            long key = key(id, sourceAddress.getAddress());
+            PendingQuery pendingQuery = pending.get(key);
+            if (pendingQuery == null
+                    || pendingQuery.channel != channel
+                    || !pendingQuery.server.equals(sourceAddress)
+                    || !pending.remove(key, pendingQuery)) {
+                continue;
+            }
+
+            byte[] responseData = new byte[receiveBuffer.remaining()];
+            receiveBuffer.get(responseData);
+            pendingQuery.response.complete(responseData);
+        }
+    }
+
+
+    /**
+     * Get the pending query key of a query ID and server
+     */
+    private static long key(int id, InetAddress server) {
+        return ((long) server.hashCode() << 16) | id;
+    }
+}
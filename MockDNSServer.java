@@ -0,0 +1,616 @@
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An in-process authoritative name server for load and latency testing
+ *
+ * The server answers UDP and TCP queries on a loopback address from the zone
+ * data it was given: it refers queries below a delegated zone to the zone's name
+ * servers with their glue, answers the records it holds authoritatively,
+ * following CNAME chains within its zone, and answers NODATA or NXDOMAIN for
+ * the end of the chain with the zone's SOA. The latency, loss rate and
+ * truncation rate of the server can be configured.
+ *
+ * Like a real server, it truncates the responses that do not fit in 512 bytes,
+ * or in the UDP payload size of the query's EDNS OPT record, up to its own
+ * EDNS_PAYLOAD_SIZE, and answers EDNS queries with an OPT record. With EDNS
+ * turned off it answers EDNS queries with FORMERR, as servers that predate
+ * EDNS do. Over TCP it answers the queries pipelined on a connection as they
+ * come, and never truncates.
+ *
+ * A hierarchy of servers (root, top-level domain and authoritative tiers) is
+ * built by giving each tier its own loopback address on a common port, which
+ * the resolver is pointed at with DNSResolver.setPort(). Addresses other than
+ * 127.0.0.1 need the whole 127.0.0.0/8 block routed to loopback, as on Linux.
+ */
+public class MockDNSServer {
+    static final int DEFAULT_PORT = 5300;
+    static final int EDNS_PAYLOAD_SIZE = 1232;
+    static final int MAX_CNAME_CHAIN = 8;
+
+    private final String zone;
+    private final DatagramSocket socket;
+    private final ServerSocket serverSocket;
+    private final HashMap<String, ArrayList<DNSRecord>> records = new HashMap<String, ArrayList<DNSRecord>>();  // by lower-cased name
+    private final ScheduledExecutorService delayed;
+    private final Random random = new Random();
+    private final AtomicInteger queries = new AtomicInteger();
+    private final AtomicInteger tcpQueries = new AtomicInteger();
+    private final AtomicInteger tcpConnections = new AtomicInteger();
+
+    private volatile int latency = 0;
+    private volatile double lossRate = 0;
+    private volatile double truncationRate = 0;
+    private volatile boolean edns = true;
+
+
+    /**
+     * @param zone the zone the server is authoritative for, "" for the root
+     * @param address the address to listen on
+     * @param port the port to listen on
+     */
+    public MockDNSServer(String zone, InetAddress address, int port) throws IOException {
+        this.zone = zone.toLowerCase();
+        this.socket = new DatagramSocket(port, address);
+        this.serverSocket = new ServerSocket(socket.getLocalPort(), 50, address);
+        this.delayed = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "mock-dns-delay");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        Thread thread = new Thread(this::serve, "mock-dns-" + address.getHostAddress());
+        thread.setDaemon(true);
+        thread.start();
+
+        Thread tcpThread = new Thread(this::serveTCP, "mock-dns-tcp-" + address.getHostAddress());
+        tcpThread.setDaemon(true);
+        tcpThread.start();
+    }
+
+
+    /**
+     * Add a record to the zone data
+     *
+     * @param name the record name
+     * @param type the record type (A, AAAA, NS, CNAME or SOA)
+     * @param ttl the record TTL
+     * @param rdata the address, name, or space separated SOA fields
+     * @return the server
+     */
+    public synchronized MockDNSServer addRecord(String name, int type, int ttl, String rdata) {
+        name = name.toLowerCase();
+        ArrayList<DNSRecord> nameRecords = records.get(name);
+        if (nameRecords == null) {
+            nameRecords = new ArrayList<DNSRecord>();
+            records.put(name, nameRecords);
+        }
+        nameRecords.add(new DNSRecord(name, type, DNSRecord.CLASS_IP, ttl, 0, rdata, 0));
+        return this;
+    }
+
+    /**
+     * Delegate a zone to a name server, adding the NS record and its glue
+     *
+     * @param child the delegated zone
+     * @param server the name server's name
+     * @param address the name server's IPv4 address
+     * @param ttl the TTL of the NS and glue records
+     * @return the server
+     */
+    public MockDNSServer delegate(String child, String server, String address, int ttl) {
+        addRecord(child, DNSRecord.TYPE_NS, ttl, server);
+        return addRecord(server, DNSRecord.TYPE_A, ttl, address);
+    }
+
+
+    public MockDNSServer setLatency(int latency) {
+        this.latency = latency;
+        return this;
+    }
+
+    public MockDNSServer setLossRate(double lossRate) {
+        this.lossRate = lossRate;
+        return this;
+    }
+
+    public MockDNSServer setTruncationRate(double truncationRate) {
+        this.truncationRate = truncationRate;
+        return this;
+    }
+
+    /**
+     * Set whether the server supports EDNS, or answers EDNS queries with FORMERR
+     */
+    public MockDNSServer setEDNS(boolean edns) {
+        this.edns = edns;
+        return this;
+    }
+
+    public InetAddress getAddress() {
+        return socket.getLocalAddress();
+    }
+
+    public int getPort() {
+        return socket.getLocalPort();
+    }
+
+    /**
+     * Get the number of queries received, over UDP and TCP
+     */
+    public int getQueries() {
+        return queries.get();
+    }
+
+    /**
+     * Get the number of queries received over TCP
+     */
+    public int getTCPQueries() {
+        return tcpQueries.get();
+    }
+
+    /**
+     * Get the number of TCP connections accepted
+     */
+    public int getTCPConnections() {
+        return tcpConnections.get();
+    }
+
+    public void close() {
+        socket.close();
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            // closing anyway
+        }
+        delayed.shutdownNow();
+    }
+
+
+    /**
+     * Receive the queries and answer them
+     */
+    private void serve() {
+        byte[] buf = new byte[DNSTransport.MAX_MESSAGE_LENGTH];
+        DatagramPacket packet = new DatagramPacket(buf, buf.length);
+
+        while (!socket.isClosed()) {
+            try {
+                packet.setLength(buf.length);
+                socket.receive(packet);
+            } catch (IOException e) {
+                continue;
+            }
+            queries.incrementAndGet();
+
+            // drop the query
+            if (random.nextDouble() < lossRate) {
+                continue;
+            }
+
+            byte[] response;
+            try {
+                response = answer(buf, packet.getLength(), random.nextDouble() < truncationRate, false);
+            } catch (RuntimeException e) {
+                // not a query we understand
+                continue;
+            }
+            final DatagramPacket responsePacket = new DatagramPacket(response, response.length, packet.getAddress(), packet.getPort());
+
+            if (latency > 0) {
+                delayed.schedule(() -> send(responsePacket), latency, TimeUnit.MILLISECONDS);
+            } else {
+                send(responsePacket);
+            }
+        }
+    }
+
+
+    /**
+     * Accept the TCP connections, each served on its own thread
+     */
+    private void serveTCP() {
+        while (!serverSocket.isClosed()) {
+            try {
+                final Socket connection = serverSocket.accept();
+                tcpConnections.incrementAndGet();
+                Thread thread = new Thread(() -> serveConnection(connection), "mock-dns-connection");
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                // closed
+            }
+        }
+    }
+
+
+    /**
+     * Answer the queries of a TCP connection, each framed by its length, until
+     * the client closes it
+     */
+    private void serveConnection(Socket connection) {
+        try (connection) {
+            DataInputStream in = new DataInputStream(connection.getInputStream());
+            final DataOutputStream out = new DataOutputStream(connection.getOutputStream());
+            while (true) {
+                byte[] query = new byte[in.readUnsignedShort()];
+                in.readFully(query);
+                queries.incrementAndGet();
+                tcpQueries.incrementAndGet();
+
+                final byte[] response;
+                try {
+                    response = answer(query, query.length, false, true);
+                } catch (RuntimeException e) {
+                    // not a query we understand
+                    continue;
+                }
+
+                if (latency > 0) {
+                    delayed.schedule(() -> send(out, response), latency, TimeUnit.MILLISECONDS);
+                } else {
+                    send(out, response);
+                }
+            }
+        } catch (EOFException e) {
+            // closed by the client
+        } catch (IOException e) {
+            // the connection failed
+        }
+    }
+
+
+    private static void send(DataOutputStream out, byte[] response) {
+        try {
+            synchronized (out) {
+                out.writeShort(response.length);
+                out.write(response);
+                out.flush();
+            }
+        } catch (IOException e) {
+            // the response is lost with the connection
+        }
+    }
+
+
+    private void send(DatagramPacket packet) {
+        try {
+            socket.send(packet);
+        } catch (IOException e) {
+            // the response is lost
+        }
+    }
+
+
+    /**
+     * Answer a query
+     *
+     * @param query the query
+     * @param length the query length
+     * @param truncate whether to send only the header and question, with TC set, even if the response fits
+     * @param tcp whether the query came over TCP, where responses are not truncated
+     * @return the response
+     */
+    byte[] answer(byte[] query, int length, boolean truncate, boolean tcp) {
+        // parse the question
+        StringBuilder qnameBuilder = new StringBuilder();
+        int i = DNSResponse.QUESTION_START_INDEX;
+        while (query[i] != 0) {
+            if (qnameBuilder.length() > 0) {
+                qnameBuilder.append('.');
+            }
+            qnameBuilder.append(new String(query, i + 1, query[i]));
+            i += 1 + query[i];
+        }
+        String qname = qnameBuilder.toString().toLowerCase();
+        int qtype = DNSResponse.parseByteToIntValue(query, i + 1, 2);
+        int questionEnd = i + 5;
+
+        // the OPT record of an EDNS query, its CLASS is the UDP payload size
+        int payloadSize = -1;
+        if (DNSResponse.parseByteToIntValue(query, DNSResponse.ARCOUNT_START_INDEX, 2) > 0 && questionEnd + 11 <= length
+                && query[questionEnd] == 0 && DNSResponse.parseByteToIntValue(query, questionEnd + 1, 2) == DNSRecord.TYPE_OPT) {
+            payloadSize = DNSResponse.parseByteToIntValue(query, questionEnd + 3, 2);
+        }
+        boolean opt = payloadSize >= 0 && edns;
+        if (payloadSize >= 0 && !edns) {
+            return writeResponse(query, questionEnd, false, DNSResponse.RCODE_FORMAT_ERROR, false, false,
+                    new ArrayList<DNSRecord>(), new ArrayList<DNSRecord>(), new ArrayList<DNSRecord>());
+        }
+
+        ArrayList<DNSRecord> answers = new ArrayList<DNSRecord>();
+        ArrayList<DNSRecord> servers = new ArrayList<DNSRecord>();
+        ArrayList<DNSRecord> additionals = new ArrayList<DNSRecord>();
+        boolean aa = false;
+        int rcode = DNSResponse.RCODE_NO_ERROR;
+
+        synchronized (this) {
+            String cut = findDelegation(qname);
+            if (cut != null) {
+                // refer the query to the delegated zone's name servers
+                for (DNSRecord record : find(cut, DNSRecord.TYPE_NS)) {
+                    servers.add(record);
+                    additionals.addAll(find(record.getRDATA(), DNSRecord.TYPE_A));
+                    additionals.addAll(find(record.getRDATA(), DNSRecord.TYPE_AAAA));
+                }
+            } else {
+                aa = true;
+                // follow the CNAME chain while it stays in the zone, as in RFC 1034, section 4.3.2
+                String name = qname;
+                for (int link = 0; name != null; link++) {
+                    ArrayList<DNSRecord> found = find(name, qtype);
+                    if (found.isEmpty() && qtype != DNSRecord.TYPE_CNAME) {
+                        found = find(name, DNSRecord.TYPE_CNAME);
+                    }
+                    answers.addAll(found);
+                    if (found.isEmpty()) {
+                        // NODATA if the end of the chain exists, NXDOMAIN if not
+                        if (!records.containsKey(name)) {
+                            rcode = DNSResponse.RCODE_NAME_ERROR;
+                        }
+                        servers.addAll(find(zone, DNSRecord.TYPE_SOA));
+                        break;
+                    }
+
+                    DNSRecord last = found.get(found.size() - 1);
+                    name = null;
+                    if (last.getTYPE() == DNSRecord.TYPE_CNAME && qtype != DNSRecord.TYPE_CNAME && link < MAX_CNAME_CHAIN) {
+                        String target = last.getRDATA().toLowerCase();
+                        if (DNSResolver.isInZone(target, zone) && findDelegation(target) == null) {
+                            name = target;
+                        }
+                    }
+                }
+            }
+        }
+
+        byte[] response = writeResponse(query, questionEnd, aa, rcode, truncate, opt, answers, servers, additionals);
+
+        // truncate the response if it does not fit in the payload size
+        int maxLength = (opt) ? Math.max(DNSTransport.MAX_MESSAGE_LENGTH, Math.min(payloadSize, EDNS_PAYLOAD_SIZE)) : DNSTransport.MAX_MESSAGE_LENGTH;
+        if (!tcp && response.length > maxLength) {
+            response = writeResponse(query, questionEnd, aa, rcode, true, opt, answers, servers, additionals);
+        }
+        return response;
+    }
+
+
+    /**
+     * Write a response
+     *
+     * @param query the query
+     * @param questionEnd the index after the query's question
+     * @param aa whether the answer is authoritative
+     * @param rcode the RCODE
+     * @param truncate whether to send only the header and question, with TC set
+     * @param opt whether to add an OPT record
+     * @return the response
+     */
+    private static byte[] writeResponse(byte[] query, int questionEnd, boolean aa, int rcode, boolean truncate, boolean opt,
+            ArrayList<DNSRecord> answers, ArrayList<DNSRecord> servers, ArrayList<DNSRecord> additionals) {
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        // ID
+        response.write(query, 0, 2);
+        // QR, OPCODE, AA, TC, RD
+        response.write(0x80 | (query[2] & 0x79) | ((aa) ? 0x04 : 0) | ((truncate) ? 0x02 : 0));
+        // RA, Z, RCODE
+        response.write(rcode);
+        if (truncate) {
+            answers = new ArrayList<DNSRecord>();
+            servers = new ArrayList<DNSRecord>();
+            additionals = new ArrayList<DNSRecord>();
+        }
+        writeShort(response, 1);
+        writeShort(response, answers.size());
+        writeShort(response, servers.size());
+        writeShort(response, additionals.size() + ((opt) ? 1 : 0));
+        response.write(query, DNSResponse.QUESTION_START_INDEX, questionEnd - DNSResponse.QUESTION_START_INDEX);
+        for (DNSRecord record : answers) {
+            writeRecord(response, record);
+        }
+        for (DNSRecord record : servers) {
+            writeRecord(response, record);
+        }
+        for (DNSRecord record : additionals) {
+            writeRecord(response, record);
+        }
+        if (opt) {
+            // the root name, TYPE, CLASS (the payload size), TTL and RDLENGTH
+            response.write(0);
+            writeShort(response, DNSRecord.TYPE_OPT);
+            writeShort(response, EDNS_PAYLOAD_SIZE);
+            writeInt(response, 0);
+            writeShort(response, 0);
+        }
+
+        return response.toByteArray();
+    }
+
+
+    /**
+     * Get the delegated zone enclosing a name, if the name is below a zone cut
+     */
+    private String findDelegation(String qname) {
+        // the closest cut is the first name with NS records going up from qname to the zone
+        String name = qname;
+        while (!name.equals(zone)) {
+            if (!find(name, DNSRecord.TYPE_NS).isEmpty()) {
+                return name;
+            }
+            if (name.isEmpty()) {
+                break;
+            }
+            int dot = name.indexOf('.');
+            name = (dot < 0) ? "" : name.substring(dot + 1);
+        }
+        return null;
+    }
+
+
+    /**
+     * Get the records of a name and type
+     */
+    private ArrayList<DNSRecord> find(String name, int type) {
+        ArrayList<DNSRecord> found = new ArrayList<DNSRecord>();
+        ArrayList<DNSRecord> nameRecords = records.get(name);
+        if (nameRecords != null) {
+            for (DNSRecord record : nameRecords) {
+                if (record.getTYPE() == type) {
+                    found.add(record);
+                }
+            }
+        }
+        return found;
+    }
+
+
+    /**
+     * Write a record in wire format, without name compression
+     */
+    private static void writeRecord(ByteArrayOutputStream out, DNSRecord record) {
+        ByteArrayOutputStream rdata = new ByteArrayOutputStream();
+        try {
+            switch (record.getTYPE()) {
+                case DNSRecord.TYPE_A:
+                case DNSRecord.TYPE_AAAA:
+                    rdata.write(InetAddress.getByName(record.getRDATA()).getAddress());
+                    break;
+                case DNSRecord.TYPE_NS:
+                case DNSRecord.TYPE_CNAME:
+                    writeName(rdata, record.getRDATA());
+                    break;
+                case DNSRecord.TYPE_SOA:
+                    String[] fields = record.getRDATA().split(" ");
+                    writeName(rdata, fields[0]);
+                    writeName(rdata, fields[1]);
+                    for (int i = 2; i < 7; i++) {
+                        writeInt(rdata, Long.parseLong(fields[i]));
+                    }
+                    break;
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("bad RDATA " + record.getRDATA(), e);
+        }
+
+        writeName(out, record.getName());
+        writeShort(out, record.getTYPE());
+        writeShort(out, record.getCLASS());
+        writeInt(out, record.getTTL());
+        writeShort(out, rdata.size());
+        out.write(rdata.toByteArray(), 0, rdata.size());
+    }
+
+    private static void writeName(ByteArrayOutputStream out, String name) {
+        if (!name.isEmpty()) {
+            for (String label : name.split("\\.")) {
+                out.write(label.length());
+                out.write(label.getBytes(), 0, label.length());
+            }
+        }
+        out.write(0);
+    }
+
+    private static void writeShort(ByteArrayOutputStream out, int value) {
+        out.write(value >> 8);
+        out.write(value);
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, long value) {
+        writeShort(out, (int) (value >> 16) & 0xFFFF);
+        writeShort(out, (int) value & 0xFFFF);
+    }
+
+
+    /**
+     * Build a three-tier hierarchy for example.com: a root server on
+     * 127.0.0.1, a com server on 127.0.0.2 and an example.com server on
+     * 127.0.0.3
+     *
+     * The example.com zone holds www (A and AAAA), alias (a CNAME for www), the
+     * names host0 to host(hosts - 1) (A) and a SOA with a 60 s negative TTL.
+     *
+     * @param port the port all the servers listen on
+     * @param hosts the number of hostN names in example.com
+     * @return the root, com and example.com servers
+     */
+    public static MockDNSServer[] createHierarchy(int port, int hosts) throws IOException {
+        MockDNSServer root = new MockDNSServer("", InetAddress.getByName("127.0.0.1"), port);
+        MockDNSServer com = new MockDNSServer("com", InetAddress.getByName("127.0.0.2"), port);
+        MockDNSServer example = new MockDNSServer("example.com", InetAddress.getByName("127.0.0.3"), port);
+
+        root.delegate("com", "a.gtld-servers.net", "127.0.0.2", 172800);
+        com.delegate("example.com", "ns1.example.com", "127.0.0.3", 172800);
+
+        example.addRecord("example.com", DNSRecord.TYPE_SOA, 3600, "ns1.example.com hostmaster.example.com 1 7200 3600 1209600 60");
+        example.addRecord("example.com", DNSRecord.TYPE_NS, 3600, "ns1.example.com");
+        example.addRecord("ns1.example.com", DNSRecord.TYPE_A, 3600, "127.0.0.3");
+        example.addRecord("www.example.com", DNSRecord.TYPE_A, 300, "93.184.216.34");
+        example.addRecord("www.example.com", DNSRecord.TYPE_AAAA, 300, "2606:2800:220:1:248:1893:25c8:1946");
+        example.addRecord("alias.example.com", DNSRecord.TYPE_CNAME, 300, "www.example.com");
+        for (int i = 0; i < hosts; i++) {
+            example.addRecord("host" + i + ".example.com", DNSRecord.TYPE_A, 300, "10." + ((i >> 16) & 0xFF) + "." + ((i >> 8) & 0xFF) + "." + (i & 0xFF));
+        }
+
+        return new MockDNSServer[] {root, com, example};
+    }
+
+
+    /**
+     * Load-test the resolver against a mock hierarchy
+     *
+     * Usage: java MockDNSServer [lookups [latency ms [loss rate]]]
+     */
+    public static void main(String[] args) throws Exception {
+        int lookups = (args.length > 0) ? Integer.parseInt(args[0]) : 10000;
+        int latency = (args.length > 1) ? Integer.parseInt(args[1]) : 0;
+        double lossRate = (args.length > 2) ? Double.parseDouble(args[2]) : 0;
+
+        MockDNSServer[] servers = createHierarchy(DEFAULT_PORT, lookups);
+        for (MockDNSServer server : servers) {
+            server.setLatency(latency).setLossRate(lossRate);
+        }
+
+        DNSResolver resolver = new DNSResolver(servers[0].getAddress());
+        resolver.setPort(DEFAULT_PORT);
+
+        // resolve every name once, all at once
+        long start = System.nanoTime();
+        ArrayList<CompletableFuture<DNSLookupResult>> results = new ArrayList<CompletableFuture<DNSLookupResult>>();
+        for (int i = 0; i < lookups; i++) {
+            results.add(resolver.lookup("host" + i + ".example.com", false));
+        }
+        int failed = 0;
+        for (CompletableFuture<DNSLookupResult> result : results) {
+            if (result.get().getAnswers() == null) {
+                failed++;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+
+        int queries = 0;
+        for (MockDNSServer server : servers) {
+            queries += server.getQueries();
+            server.close();
+        }
+        resolver.close();
+
+        System.out.format("%d lookups (%d failed) in %.1f ms, %.0f lookups/s, %d queries received\n",
+                lookups, failed, elapsed / 1e6, lookups / (elapsed / 1e9), queries);
+    }
+}